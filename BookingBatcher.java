@@ -0,0 +1,338 @@
+package flightapp;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Books concurrent requests together, in one transaction with one commit (group commit).
+ *
+ * Enabled by setting flightapp.book.batch_window_us above 0. The first booking to arrive opens
+ * a batch, which collects the bookings that arrive within the window, up to
+ * flightapp.book.max_batch. A single thread then checks the same-day rule and the capacity of
+ * every flight for the whole batch, in arrival order, inserts the accepted reservations with
+ * one multi-row insert, and commits once. Each caller gets the same response an unbatched
+ * booking would have given.
+ *
+ * A batch takes its locks in the same order as an unbatched booking (users, then seat counters
+ * by fid), so the two can be mixed. Batches run on a connection of their own, outside the pool,
+ * since every caller waiting on one holds a pooled connection. A batch's round trips and rows
+ * are split among its bookings and added to their callers' command metrics.
+ */
+public class BookingBatcher {
+  private static final String LOCK_USERS_SQL = "SELECT username FROM users_ishaj83 "
+    + "WHERE username = ANY (?) ORDER BY username FOR UPDATE";
+
+  private static final String BOOKED_DAYS_SQL = "SELECT username, day_of_month FROM reservations_ishaj83 "
+    + "WHERE username = ANY (?)";
+
+  private final long windowNanos;
+  private final int maxBatch;
+  private final BlockingQueue<Request> pending = new LinkedBlockingQueue<>();
+  private final TransactionRunner runner = TransactionRunner.getInstance();
+
+  private final AtomicLong batches = new AtomicLong();
+  private final AtomicLong bookings = new AtomicLong();
+
+  // used by the batcher thread only, and opened again after an error
+  private Connection conn;
+  private StatementRegistry statements;
+  private ReservationIdAllocator reservationIds;
+  private SeatInventory seats;
+
+  public BookingBatcher(long windowMicros, int maxBatch) {
+    this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+    this.maxBatch = maxBatch;
+    Thread t = new Thread(this::run, "flightapp-booking-batcher");
+    t.setDaemon(true);
+    t.start();
+  }
+
+  /**
+   * Returns the shared batcher
+   *
+   * @return null if batching is disabled
+   */
+  public static BookingBatcher getInstance() {
+    return Holder.INSTANCE;
+  }
+
+  private static BookingBatcher create() {
+    long window = Long.parseLong(DBConnUtils.getProperty("flightapp.book.batch_window_us", "0"));
+    if (window <= 0) {
+      return null;
+    }
+    return new BookingBatcher(window,
+        Integer.parseInt(DBConnUtils.getProperty("flightapp.book.max_batch", "64")));
+  }
+
+  /**
+   * Books an itinerary in the next batch and waits for the result
+   *
+   * @param fids the itinerary's flights, in order
+   * @return the response of QueryAbstract.book for a logged-in user and a valid itinerary
+   */
+  public String book(String username, int dayOfMonth, List<Integer> fids) {
+    Request request = new Request(username, dayOfMonth, fids);
+    pending.add(request);
+    try {
+      String response = request.result.get();
+      CommandMetrics.addShare(request.roundTrips, request.rows);
+      return response;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return "Booking failed\n";
+    } catch (ExecutionException e) {
+      e.getCause().printStackTrace();
+      return "Booking failed\n";
+    }
+  }
+
+  private void run() {
+    List<Request> batch = new ArrayList<>();
+    while (true) {
+      try {
+        batch.add(pending.take());
+        long deadline = System.nanoTime() + windowNanos;
+        while (batch.size() < maxBatch) {
+          Request next = pending.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+          if (next == null) {
+            break;
+          }
+          batch.add(next);
+        }
+        pending.drainTo(batch, maxBatch - batch.size());
+      } catch (InterruptedException e) {
+        for (Request r : batch) {
+          r.result.complete("Booking failed\n");
+        }
+        return;
+      }
+
+      try {
+        runBatch(batch);
+      } catch (RuntimeException e) {
+        e.printStackTrace();
+      } finally {
+        // no-op for requests that already have their response
+        for (Request r : batch) {
+          r.result.complete("Booking failed\n");
+        }
+        batch.clear();
+      }
+    }
+  }
+
+  /**
+   * Books a batch in one transaction and completes each request with its response
+   */
+  private void runBatch(List<Request> batch) {
+    batches.incrementAndGet();
+    bookings.addAndGet(batch.size());
+    long roundTrips = CommandMetrics.currentRoundTrips();
+    long rows = CommandMetrics.currentRows();
+    Outcome outcome = null;
+    try {
+      if (conn == null) {
+        connect();
+      }
+      conn.setAutoCommit(false);
+      try {
+        outcome = runner.run("book_batch", conn,
+            () -> bookBatch(conn, statements, seats, reservationIds, batch), null);
+      } finally {
+        conn.setAutoCommit(true);
+      }
+    } catch (SQLException | IOException e) {
+      e.printStackTrace();
+      disconnect();
+    }
+    roundTrips = CommandMetrics.currentRoundTrips() - roundTrips;
+    rows = CommandMetrics.currentRows() - rows;
+
+    EventJournal journal = EventJournal.getInstance();
+    for (int r = 0; r < batch.size(); r++) {
+      String response = outcome == null ? "Booking failed\n" : outcome.responses[r];
+      Request request = batch.get(r);
+      if (journal != null && outcome != null && outcome.reservationIds[r] != 0) {
+        journal.recordBook(outcome.reservationIds[r], request.username, request.dayOfMonth,
+                           request.fids);
+      }
+      // the first few get the remainder, so the shares add up to the batch's counts
+      request.roundTrips = roundTrips / batch.size() + (r < roundTrips % batch.size() ? 1 : 0);
+      request.rows = rows / batch.size() + (r < rows % batch.size() ? 1 : 0);
+      request.result.complete(response);
+    }
+  }
+
+  private void connect() throws SQLException, IOException {
+    Connection fresh = DBConnUtils.openConnection();
+    try {
+      statements = new StatementRegistry(fresh);
+      // the allocator creates the reservation legs table that the seat recount reads
+      reservationIds = new ReservationIdAllocator(statements);
+      seats = new SeatInventory(statements);
+    } catch (SQLException e) {
+      fresh.close();
+      throw e;
+    }
+    conn = fresh;
+  }
+
+  private void disconnect() {
+    if (conn != null) {
+      statements.close();
+      try {
+        conn.close();
+      } catch (SQLException e) {
+        // the connection is being dropped anyway
+      }
+      conn = null;
+    }
+  }
+
+  /**
+   * Books a batch in the connection's transaction and commits it
+   */
+  private Outcome bookBatch(Connection conn, StatementRegistry statements, SeatInventory seats,
+                            ReservationIdAllocator reservationIds, List<Request> batch)
+    throws SQLException {
+    Outcome outcome = new Outcome(batch.size());
+    String[] responses = outcome.responses;
+    Set<String> usernames = new TreeSet<>();
+    Set<Integer> fids = new TreeSet<>();
+    for (Request r : batch) {
+      usernames.add(r.username);
+      fids.addAll(r.fids);
+    }
+    String[] users = usernames.toArray(new String[0]);
+
+    // wait for these users' other bookings, then collect the days they have booked
+    PreparedStatement lockUsers = statements.get(LOCK_USERS_SQL);
+    lockUsers.clearParameters();
+    lockUsers.setArray(1, conn.createArrayOf("text", users));
+    try (ResultSet rs = CommandMetrics.executeQuery(lockUsers)) {
+      while (CommandMetrics.next(rs)) {
+        // locking is all that is needed
+      }
+    }
+    Set<String> bookedDays = new HashSet<>();
+    PreparedStatement days = statements.get(BOOKED_DAYS_SQL);
+    days.clearParameters();
+    days.setArray(1, conn.createArrayOf("text", users));
+    try (ResultSet rs = CommandMetrics.executeQuery(days)) {
+      while (CommandMetrics.next(rs)) {
+        bookedDays.add(rs.getString("username") + "\n" + rs.getInt("day_of_month"));
+      }
+    }
+
+    // take seats in arrival order; a booking that doesn't fit takes none
+    Map<Integer, Integer> booked = seats.lockCounters(fids);
+    Map<Integer, Integer> added = new TreeMap<>();
+    List<Integer> accepted = new ArrayList<>();
+    for (int r = 0; r < batch.size(); r++) {
+      Request request = batch.get(r);
+      if (!bookedDays.add(request.username + "\n" + request.dayOfMonth)) {
+        responses[r] = "You cannot book two flights in the same day\n";
+        continue;
+      }
+      boolean fits = true;
+      for (int fid : request.fids) {
+        int taken = booked.getOrDefault(fid, 0) + added.getOrDefault(fid, 0);
+        fits &= taken < seats.getCapacity(fid);
+      }
+      if (!fits) {
+        bookedDays.remove(request.username + "\n" + request.dayOfMonth);
+        responses[r] = "Booking failed\n";
+        continue;
+      }
+      for (int fid : request.fids) {
+        added.merge(fid, 1, Integer::sum);
+      }
+      accepted.add(r);
+    }
+
+    if (!accepted.isEmpty()) {
+      seats.addBooked(added);
+      List<String> names = new ArrayList<>();
+      List<Integer> dayList = new ArrayList<>();
+      List<List<Integer>> itineraries = new ArrayList<>();
+      for (int r : accepted) {
+        names.add(batch.get(r).username);
+        dayList.add(batch.get(r).dayOfMonth);
+        itineraries.add(batch.get(r).fids);
+      }
+      int[] ids = reservationIds.insertReservations(names, dayList, itineraries);
+      for (int k = 0; k < accepted.size(); k++) {
+        outcome.reservationIds[accepted.get(k)] = ids[k];
+        responses[accepted.get(k)] = "Booked flight(s), reservation ID: " + ids[k] + "\n";
+      }
+    }
+    conn.commit();
+    CommandMetrics.roundTrip();
+    return outcome;
+  }
+
+  /**
+   * Get the number of batches committed or attempted
+   */
+  public long getBatches() {
+    return batches.get();
+  }
+
+  /**
+   * Get the number of bookings submitted in batches
+   */
+  public long getBookings() {
+    return bookings.get();
+  }
+
+  /**
+   * Creates the shared batcher on first use, without locking later bookings
+   */
+  private static class Holder {
+    static final BookingBatcher INSTANCE = create();
+  }
+
+  /**
+   * The responses to a committed batch's bookings, in batch order, and the reservation IDs of
+   * those that were booked (0 for the others)
+   */
+  private static class Outcome {
+    final String[] responses;
+    final int[] reservationIds;
+
+    Outcome(int size) {
+      responses = new String[size];
+      reservationIds = new int[size];
+    }
+  }
+
+  /**
+   * A booking waiting for its batch
+   */
+  private static class Request {
+    final String username;
+    final int dayOfMonth;
+    final List<Integer> fids;
+    final CompletableFuture<String> result = new CompletableFuture<>();
+    // this booking's share of the batch's work, set before the result
+    long roundTrips;
+    long rows;
+
+    Request(String username, int dayOfMonth, List<Integer> fids) {
+      this.username = username;
+      this.dayOfMonth = dayOfMonth;
+      this.fids = fids;
+    }
+  }
+}
@@ -0,0 +1,255 @@
+package flightapp;
+
+import java.lang.management.ManagementFactory;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Latency, database round trips, rows fetched, retries, aborts and password hashing time of each
+ * command, shown by the "stats" command and published as MBeans.
+ *
+ * A command runs on one thread, so while it runs its counts are kept in that thread's Recorder
+ * and only added to the shared totals when it ends. Recording allocates nothing. Statements
+ * are counted where they run, through {@link #executeQuery}, {@link #executeUpdate} and
+ * {@link #next}.
+ */
+public class CommandMetrics implements CommandMetricsMBean {
+  public enum Command { LOGIN, CREATE, SEARCH, BOOK, PAY, RESERVATIONS }
+
+  private static final CommandMetrics[] COMMANDS = new CommandMetrics[Command.values().length];
+  private static final ThreadLocal<Recorder> CURRENT = ThreadLocal.withInitial(Recorder::new);
+
+  static {
+    for (Command c : Command.values()) {
+      COMMANDS[c.ordinal()] = new CommandMetrics(c);
+    }
+    registerMBeans();
+    ProcessMetrics.registerMBean();
+  }
+
+  private final Command command;
+  private final Histogram latency = new Histogram();
+  private final AtomicLong roundTrips = new AtomicLong();
+  private final AtomicLong rows = new AtomicLong();
+  private final AtomicLong aborts = new AtomicLong();
+  private final AtomicLong retries = new AtomicLong();
+  private final AtomicLong passwordNanos = new AtomicLong();
+
+  private CommandMetrics(Command command) {
+    this.command = command;
+  }
+
+  public static CommandMetrics get(Command command) {
+    return COMMANDS[command.ordinal()];
+  }
+
+  private static void registerMBeans() {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      for (CommandMetrics m : COMMANDS) {
+        ObjectName name = new ObjectName("flightapp:type=Command,name="
+                                         + m.command.name().toLowerCase(Locale.ROOT));
+        if (!server.isRegistered(name)) {
+          server.registerMBean(m, name);
+        }
+      }
+    } catch (JMException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Starts measuring a command on this thread
+   */
+  public static void begin(Command command) {
+    Recorder r = CURRENT.get();
+    r.command = command;
+    r.roundTrips = 0;
+    r.rows = 0;
+    r.aborts = 0;
+    r.retries = 0;
+    r.passwordNanos = 0;
+    r.start = System.nanoTime();
+  }
+
+  /**
+   * Adds the command measured on this thread to its totals
+   */
+  public static void end() {
+    Recorder r = CURRENT.get();
+    if (r.command == null) {
+      return;
+    }
+    CommandMetrics m = COMMANDS[r.command.ordinal()];
+    m.latency.record(System.nanoTime() - r.start);
+    m.roundTrips.addAndGet(r.roundTrips);
+    m.rows.addAndGet(r.rows);
+    m.aborts.addAndGet(r.aborts);
+    m.retries.addAndGet(r.retries);
+    m.passwordNanos.addAndGet(r.passwordNanos);
+    r.command = null;
+  }
+
+  /**
+   * Counts a request to the database, eg a statement execution or a commit
+   */
+  public static void roundTrip() {
+    CURRENT.get().roundTrips++;
+  }
+
+  /**
+   * Get the round trips counted on this thread, eg before and after work done for other threads
+   */
+  public static long currentRoundTrips() {
+    return CURRENT.get().roundTrips;
+  }
+
+  /**
+   * Get the rows counted on this thread
+   */
+  public static long currentRows() {
+    return CURRENT.get().rows;
+  }
+
+  /**
+   * Adds work done for this thread's command on another thread, eg by the booking batcher
+   */
+  public static void addShare(long roundTrips, long rows) {
+    Recorder r = CURRENT.get();
+    r.roundTrips += roundTrips;
+    r.rows += rows;
+  }
+
+  public static void aborted() {
+    CURRENT.get().aborts++;
+  }
+
+  public static void retried() {
+    CURRENT.get().retries++;
+  }
+
+  public static void passwordHashed(long nanos) {
+    CURRENT.get().passwordNanos += nanos;
+  }
+
+  /**
+   * Runs a query, counting the round trip
+   */
+  public static ResultSet executeQuery(PreparedStatement ps) throws SQLException {
+    CURRENT.get().roundTrips++;
+    return ps.executeQuery();
+  }
+
+  /**
+   * Runs an update, counting the round trip
+   */
+  public static int executeUpdate(PreparedStatement ps) throws SQLException {
+    CURRENT.get().roundTrips++;
+    return ps.executeUpdate();
+  }
+
+  /**
+   * Moves to the next row, counting it as fetched
+   */
+  public static boolean next(ResultSet rs) throws SQLException {
+    if (!rs.next()) {
+      return false;
+    }
+    CURRENT.get().rows++;
+    return true;
+  }
+
+  /**
+   * Formats every command's totals as a table, latencies in microseconds, followed by the
+   * process-wide counters
+   */
+  public static String report() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format(Locale.ROOT, "%-13s %8s %9s %9s %9s %9s %12s %10s %8s %8s %12s%n",
+                            "command", "count", "p50_us", "p99_us", "p999_us", "max_us",
+                            "round_trips", "rows", "retries", "aborts", "password_ms"));
+    for (CommandMetrics m : COMMANDS) {
+      sb.append(String.format(Locale.ROOT, "%-13s %8d %9d %9d %9d %9d %12d %10d %8d %8d %12d%n",
+                              m.command.name().toLowerCase(Locale.ROOT), m.getCount(),
+                              m.getLatencyP50Micros(), m.getLatencyP99Micros(),
+                              m.getLatencyP999Micros(), m.getLatencyMaxMicros(),
+                              m.getRoundTrips(), m.getRowsFetched(), m.getRetries(),
+                              m.getAborts(), m.getPasswordMillis()));
+    }
+    sb.append(ProcessMetrics.get().report());
+    return sb.toString();
+  }
+
+  public Histogram getLatency() {
+    return latency;
+  }
+
+  @Override
+  public long getCount() {
+    return latency.getCount();
+  }
+
+  @Override
+  public long getLatencyP50Micros() {
+    return latency.percentile(0.5) / 1000;
+  }
+
+  @Override
+  public long getLatencyP99Micros() {
+    return latency.percentile(0.99) / 1000;
+  }
+
+  @Override
+  public long getLatencyP999Micros() {
+    return latency.percentile(0.999) / 1000;
+  }
+
+  @Override
+  public long getLatencyMaxMicros() {
+    return latency.getMax() / 1000;
+  }
+
+  @Override
+  public long getRoundTrips() {
+    return roundTrips.get();
+  }
+
+  @Override
+  public long getRowsFetched() {
+    return rows.get();
+  }
+
+  @Override
+  public long getAborts() {
+    return aborts.get();
+  }
+
+  @Override
+  public long getRetries() {
+    return retries.get();
+  }
+
+  @Override
+  public long getPasswordMillis() {
+    return passwordNanos.get() / 1_000_000;
+  }
+
+  /**
+   * Counts of the command running on one thread
+   */
+  private static class Recorder {
+    Command command;
+    long start;
+    long roundTrips;
+    long rows;
+    long aborts;
+    long retries;
+    long passwordNanos;
+  }
+}
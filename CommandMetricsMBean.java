@@ -0,0 +1,35 @@
+package flightapp;
+
+/**
+ * JMX view of the metrics of one REPL command, registered as flightapp:type=Command,name=[command]
+ */
+public interface CommandMetricsMBean {
+  long getCount();
+
+  long getLatencyP50Micros();
+
+  long getLatencyP99Micros();
+
+  long getLatencyP999Micros();
+
+  long getLatencyMaxMicros();
+
+  /**
+   * Get the number of statements executed, commits and rollbacks
+   */
+  long getRoundTrips();
+
+  long getRowsFetched();
+
+  /**
+   * Get the number of transaction attempts aborted by serialization failures or deadlocks
+   */
+  long getAborts();
+
+  long getRetries();
+
+  /**
+   * Get the time spent waiting for password hashes, in milliseconds
+   */
+  long getPasswordMillis();
+}
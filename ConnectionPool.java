@@ -0,0 +1,464 @@
+package flightapp;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded pool of database connections shared by every session in the process.
+ *
+ * Callers borrow a connection with {@link #getConnection()} and give it back by closing it.
+ * A returned connection is rolled back if needed and reset to auto-commit, the default isolation
+ * level and read-write before anyone else can borrow it. A background task keeps at least the
+ * minimum number of connections open, closes connections that fail validation, and reports
+ * connections that have been borrowed for longer than the leak threshold.
+ *
+ * Every physical connection carries a {@link StatementRegistry} that outlives individual leases.
+ * Commits, rollbacks and auto-commit changes on a lease are reported to the registry's
+ * {@link TransactionTracker}. Statements created directly on a borrowed connection and left open
+ * when it is returned are closed by the pool and counted as leaked.
+ */
+public class ConnectionPool {
+  /**
+   * Opens a new physical connection for the pool
+   */
+  public interface ConnectionFactory {
+    Connection open() throws SQLException;
+  }
+
+  /**
+   * Implemented by every connection handed out by the pool
+   */
+  public interface Leased {
+    /**
+     * Get the prepared statements of the underlying physical connection
+     */
+    StatementRegistry getStatementRegistry();
+  }
+
+  private final ConnectionFactory factory;
+  private final int minSize;
+  private final int maxSize;
+  private final long borrowTimeoutMillis;
+  private final long validateAfterIdleMillis;
+  private final long leakThresholdMillis;
+  private final int defaultIsolation;
+
+  private final Deque<Idle> idle = new ArrayDeque<>();
+  private final Set<Lease> leases = ConcurrentHashMap.newKeySet();
+  private final ScheduledExecutorService housekeeper;
+
+  private int total;
+  private boolean closed;
+  private long leaksDetected;
+  private long validationFailures;
+  private long leakedStatements;
+
+  public ConnectionPool(ConnectionFactory factory, int minSize, int maxSize,
+                        long borrowTimeoutMillis, long validateAfterIdleMillis,
+                        long healthCheckMillis, long leakThresholdMillis, int defaultIsolation) {
+    this.factory = factory;
+    this.minSize = minSize;
+    this.maxSize = maxSize;
+    this.borrowTimeoutMillis = borrowTimeoutMillis;
+    this.validateAfterIdleMillis = validateAfterIdleMillis;
+    this.leakThresholdMillis = leakThresholdMillis;
+    this.defaultIsolation = defaultIsolation;
+
+    housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "flightapp-pool-housekeeper");
+      t.setDaemon(true);
+      return t;
+    });
+    housekeeper.scheduleWithFixedDelay(this::houseKeep, 0, healthCheckMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Borrows a connection, waiting up to the borrow timeout for one to become free. Closing the
+   * returned connection gives it back to the pool.
+   */
+  public Connection getConnection() throws SQLException {
+    long deadline = System.currentTimeMillis() + borrowTimeoutMillis;
+    while (true) {
+      Slot slot = null;
+      boolean openNew = false;
+      boolean validate = false;
+      synchronized (this) {
+        while (!closed && idle.isEmpty() && total >= maxSize) {
+          long wait = deadline - System.currentTimeMillis();
+          if (wait <= 0) {
+            throw new SQLException("Timed out waiting for a database connection (pool size "
+                                   + maxSize + ")");
+          }
+          try {
+            wait(wait);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a database connection", e);
+          }
+        }
+        if (closed) {
+          throw new SQLException("Connection pool is closed");
+        }
+        if (!idle.isEmpty()) {
+          Idle i = idle.pollFirst();
+          slot = i.slot;
+          validate = System.currentTimeMillis() - i.since > validateAfterIdleMillis;
+        } else {
+          total++;
+          openNew = true;
+        }
+      }
+
+      // a connection that sat idle for a while may have been dropped by the server; it is
+      // validated outside the lock, so a hung server doesn't stall every borrow and return
+      if (validate && !isValid(slot.physical)) {
+        discard(slot);
+        continue;
+      }
+
+      if (openNew) {
+        try {
+          slot = new Slot(factory.open());
+        } catch (SQLException e) {
+          synchronized (this) {
+            total--;
+            notifyAll();
+          }
+          throw e;
+        }
+      }
+      return lease(slot);
+    }
+  }
+
+  private Connection lease(Slot slot) {
+    Lease lease = new Lease(slot, leakThresholdMillis > 0 ? new Throwable("Connection borrowed here") : null);
+    leases.add(lease);
+    return (Connection) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(),
+                                               new Class<?>[] {Connection.class, Leased.class}, lease);
+  }
+
+  /**
+   * Resets a returned connection and makes it available again, or closes it if it cannot be reset
+   */
+  private void release(Lease lease) {
+    leases.remove(lease);
+    Slot slot = lease.slot;
+    Connection physical = slot.physical;
+    int leaked = 0;
+    try {
+      for (Statement s : lease.statements) {
+        if (!s.isClosed()) {
+          s.close();
+          leaked++;
+        }
+      }
+      if (!physical.getAutoCommit()) {
+        physical.rollback();
+        physical.setAutoCommit(true);
+      }
+      slot.statements.getTransactionTracker().reset();
+      if (physical.getTransactionIsolation() != defaultIsolation) {
+        physical.setTransactionIsolation(defaultIsolation);
+      }
+      if (physical.isReadOnly()) {
+        physical.setReadOnly(false);
+      }
+      physical.clearWarnings();
+    } catch (SQLException e) {
+      synchronized (this) {
+        leakedStatements += leaked;
+      }
+      discard(slot);
+      return;
+    }
+
+    boolean discard;
+    synchronized (this) {
+      leakedStatements += leaked;
+      discard = closed;
+      if (!closed) {
+        idle.addFirst(new Idle(slot));
+        notifyAll();
+      }
+    }
+    if (discard) {
+      discard(slot);
+    }
+  }
+
+  /**
+   * Closes a physical connection and frees its slot. Callers should not hold the pool's lock,
+   * since closing may wait on the server.
+   */
+  private void discard(Slot slot) {
+    synchronized (this) {
+      total--;
+      notifyAll();
+    }
+    slot.statements.close();
+    try {
+      slot.physical.close();
+    } catch (SQLException e) {
+      // already broken
+    }
+  }
+
+  private boolean isValid(Connection physical) {
+    try {
+      if (physical.isValid(5)) {
+        return true;
+      }
+    } catch (SQLException e) {
+      // treated as invalid
+    }
+    synchronized (this) {
+      validationFailures++;
+    }
+    return false;
+  }
+
+  /**
+   * Periodic health check: validates idle connections, tops the pool up to its minimum size and
+   * reports leaked leases.
+   */
+  private void houseKeep() {
+    // take the connections due for validation out of the idle list, so none is borrowed while it
+    // is validated outside the lock
+    List<Idle> due = new ArrayList<>();
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      for (Iterator<Idle> it = idle.iterator(); it.hasNext(); ) {
+        Idle i = it.next();
+        if (System.currentTimeMillis() - i.since > validateAfterIdleMillis) {
+          it.remove();
+          due.add(i);
+        }
+      }
+    }
+    for (Idle i : due) {
+      if (!isValid(i.slot.physical)) {
+        discard(i.slot);
+        continue;
+      }
+      boolean discard;
+      synchronized (this) {
+        discard = closed;
+        if (!closed) {
+          idle.addLast(new Idle(i.slot));
+          notifyAll();
+        }
+      }
+      if (discard) {
+        discard(i.slot);
+      }
+    }
+
+    while (true) {
+      synchronized (this) {
+        if (closed || total >= minSize) {
+          break;
+        }
+        total++;
+      }
+      try {
+        Slot slot = new Slot(factory.open());
+        synchronized (this) {
+          idle.addLast(new Idle(slot));
+          notifyAll();
+        }
+      } catch (SQLException e) {
+        synchronized (this) {
+          total--;
+        }
+        break;
+      }
+    }
+
+    if (leakThresholdMillis > 0) {
+      long now = System.currentTimeMillis();
+      for (Lease lease : leases) {
+        if (!lease.reported && now - lease.borrowedAt > leakThresholdMillis) {
+          lease.reported = true;
+          synchronized (this) {
+            leaksDetected++;
+          }
+          System.err.println("Possible connection leak: connection held for "
+                             + (now - lease.borrowedAt) + " ms");
+          lease.borrowedBy.printStackTrace();
+        }
+      }
+    }
+  }
+
+  /**
+   * Closes every idle connection and stops handing out new ones. Borrowed connections are closed
+   * when they are returned.
+   */
+  public void close() {
+    housekeeper.shutdownNow();
+    List<Idle> closing;
+    synchronized (this) {
+      closed = true;
+      closing = new ArrayList<>(idle);
+      idle.clear();
+    }
+    for (Idle i : closing) {
+      discard(i.slot);
+    }
+  }
+
+  public synchronized int getTotalConnections() {
+    return total;
+  }
+
+  public synchronized int getIdleConnections() {
+    return idle.size();
+  }
+
+  public int getActiveConnections() {
+    return leases.size();
+  }
+
+  public synchronized long getLeaksDetected() {
+    return leaksDetected;
+  }
+
+  public synchronized long getValidationFailures() {
+    return validationFailures;
+  }
+
+  /**
+   * Get the number of statements that were still open when their connection was returned
+   */
+  public synchronized long getLeakedStatements() {
+    return leakedStatements;
+  }
+
+  private static boolean isClosed(Statement s) {
+    try {
+      return s.isClosed();
+    } catch (SQLException e) {
+      return true;
+    }
+  }
+
+  /**
+   * A physical connection and the statements prepared on it
+   */
+  private static class Slot {
+    final Connection physical;
+    final StatementRegistry statements;
+
+    Slot(Connection physical) throws SQLException {
+      this.physical = physical;
+      this.statements = new StatementRegistry(physical);
+    }
+  }
+
+  private static class Idle {
+    final Slot slot;
+    final long since;
+
+    Idle(Slot slot) {
+      this.slot = slot;
+      this.since = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * One borrowing of a physical connection. Closing the lease returns the connection to the pool;
+   * a closed lease rejects any further use.
+   */
+  private class Lease implements InvocationHandler {
+    final Slot slot;
+    final Throwable borrowedBy;
+    final long borrowedAt = System.currentTimeMillis();
+    // statements created directly on this lease, checked for leaks on release. Closed ones are
+    // dropped whenever the list doubles, so it stays within twice the open statements.
+    final List<Statement> statements = new ArrayList<>();
+    private int pruneAt = 16;
+    volatile boolean reported;
+    private boolean returned;
+
+    Lease(Slot slot, Throwable borrowedBy) {
+      this.slot = slot;
+      this.borrowedBy = borrowedBy;
+    }
+
+    @Override
+    public Object invoke(Object p, Method method, Object[] args) throws Throwable {
+      switch (method.getName()) {
+        case "close":
+          if (!returned) {
+            returned = true;
+            release(this);
+          }
+          return null;
+        case "isClosed":
+          return returned || slot.physical.isClosed();
+        case "getStatementRegistry":
+          return slot.statements;
+        case "equals":
+          return p == args[0];
+        case "hashCode":
+          return System.identityHashCode(p);
+        case "toString":
+          return "Pooled " + slot.physical;
+        default:
+          if (returned) {
+            throw new SQLException("Connection has already been returned to the pool");
+          }
+          Object result;
+          try {
+            result = method.invoke(slot.physical, args);
+          } catch (InvocationTargetException e) {
+            throw e.getCause();
+          }
+          TransactionTracker tracker = slot.statements.getTransactionTracker();
+          switch (method.getName()) {
+            case "commit":
+              tracker.committed();
+              CommandMetrics.roundTrip();
+              break;
+            case "rollback":
+              if (args == null) {
+                tracker.rolledBack();
+              }
+              CommandMetrics.roundTrip();
+              break;
+            case "setAutoCommit":
+              tracker.autoCommitChanged((Boolean) args[0]);
+              break;
+            default:
+              break;
+          }
+          if (result instanceof Statement) {
+            if (statements.size() >= pruneAt) {
+              statements.removeIf(ConnectionPool::isClosed);
+              pruneAt = Math.max(16, statements.size() * 2);
+            }
+            statements.add((Statement) result);
+          }
+          return result;
+      }
+    }
+  }
+}
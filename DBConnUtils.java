@@ -11,6 +11,18 @@ import java.util.Properties;
  * A collection of utility methods to help with parsing dbconn.properties.
  */
 public class DBConnUtils {
+  /**
+   * Isolation level of every connection outside a transaction that asks for another one
+   */
+  public static final int DEFAULT_ISOLATION = Connection.TRANSACTION_READ_COMMITTED;
+
+  // dbconn.properties, read once per process
+  private static Properties configProps;
+
+  private static ConnectionPool connectionPool;
+
+  private static ConnectionPool replicaPool;
+
   /**
    * Open and return a connection using dbconn.properties file
    *
@@ -18,27 +30,123 @@ public class DBConnUtils {
    * @throws IOException
    */
   public static Connection openConnection() throws SQLException, IOException {
+    return openConnection("flightapp");
+  }
+
+  /**
+   * Open and return a connection using the settings under the given property prefix, eg
+   * "flightapp" for flightapp.server_url, flightapp.database_name, ... Settings missing under
+   * another prefix fall back to the flightapp ones.
+   *
+   * @throws SQLException
+   * @throws IOException
+   */
+  static Connection openConnection(String prefix) throws SQLException, IOException {
     // Connect to the database with the provided connection configuration
-    Properties configProps = new Properties();
-    configProps.load(new FileInputStream("dbconn.properties"));
+    Properties configProps = loadConfig();
 
-    String serverURL = configProps.getProperty("flightapp.server_url");
-    String dbName = configProps.getProperty("flightapp.database_name");
+    String serverURL = setting(configProps, prefix, "server_url");
+    String dbName = setting(configProps, prefix, "database_name");
+    String port = setting(configProps, prefix, "port");
+    if (port == null) {
+      port = "5432";
+    }
 
     String connectionUrl =
-        String.format("jdbc:postgresql://%s:5432/%s",
-                      serverURL, dbName);
-    Connection conn = DriverManager.getConnection(connectionUrl);
+        String.format("jdbc:postgresql://%s:%s/%s",
+                      serverURL, port, dbName);
+
+    Properties connProps = new Properties();
+    String username = setting(configProps, prefix, "username");
+    String password = setting(configProps, prefix, "password");
+    if (username != null && !username.isEmpty()) {
+      connProps.setProperty("user", username);
+    }
+    if (password != null && !password.isEmpty()) {
+      connProps.setProperty("password", password);
+    }
+    // Let the driver keep server-side prepared statements for repeated SQL on each connection
+    connProps.setProperty("prepareThreshold", getProperty("flightapp.pool.prepare_threshold", "1"));
+    connProps.setProperty("preparedStatementCacheQueries",
+                          getProperty("flightapp.pool.statement_cache_size", "256"));
+
+    Connection conn = DriverManager.getConnection(connectionUrl, connProps);
 
     // By default, automatically commit after each statement
     conn.setAutoCommit(true);
 
-    // By default, set the transaction isolation level to serializable
-    conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+    // By default, read committed; each operation takes the row locks it needs
+    conn.setTransactionIsolation(DEFAULT_ISOLATION);
 
     return conn;
   }
 
+  private static String setting(Properties configProps, String prefix, String name) {
+    return configProps.getProperty(prefix + "." + name, configProps.getProperty("flightapp." + name));
+  }
+
+  /**
+   * Get the process-wide connection pool, creating it on first use
+   */
+  public static synchronized ConnectionPool getConnectionPool() {
+    if (connectionPool == null) {
+      connectionPool = createPool("flightapp");
+    }
+    return connectionPool;
+  }
+
+  /**
+   * Get the process-wide pool of read replica connections, creating it on first use
+   *
+   * @return null if no replica is configured (flightapp.replica.server_url)
+   */
+  public static synchronized ConnectionPool getReplicaPool() {
+    if (replicaPool == null && getProperty("flightapp.replica.server_url", null) != null) {
+      replicaPool = createPool("flightapp.replica");
+    }
+    return replicaPool;
+  }
+
+  static ConnectionPool createPool(String prefix) {
+    ConnectionPool.ConnectionFactory factory = () -> {
+      try {
+        return openConnection(prefix);
+      } catch (IOException e) {
+        throw new SQLException("Cannot read dbconn.properties", e);
+      }
+    };
+    return new ConnectionPool(factory,
+                              Integer.parseInt(getProperty("flightapp.pool.min_size", "1")),
+                              Integer.parseInt(getProperty("flightapp.pool.max_size", "20")),
+                              Long.parseLong(getProperty("flightapp.pool.borrow_timeout_ms", "30000")),
+                              Long.parseLong(getProperty("flightapp.pool.validate_after_idle_ms", "5000")),
+                              Long.parseLong(getProperty("flightapp.pool.health_check_ms", "30000")),
+                              Long.parseLong(getProperty("flightapp.pool.leak_threshold_ms", "0")),
+                              DEFAULT_ISOLATION);
+  }
+
+  /**
+   * Get an optional application setting from dbconn.properties, falling back to a system
+   * property of the same name and then to the given default.
+   */
+  public static String getProperty(String name, String defaultValue) {
+    String value;
+    try {
+      value = loadConfig().getProperty(name);
+    } catch (IOException e) {
+      // no config file; only system properties apply
+      value = null;
+    }
+
+    if (value == null || value.trim().isEmpty()) {
+      value = System.getProperty(name);
+    }
+    if (value == null || value.trim().isEmpty()) {
+      return defaultValue;
+    }
+    return value.trim();
+  }
+
   /**
    * Get the table suffix
    *
@@ -47,8 +155,7 @@ public class DBConnUtils {
    */
   public static String getTableSuffix() throws SQLException, IOException {
     // Connect to the database with the provided connection configuration
-    Properties configProps = new Properties();
-    configProps.load(new FileInputStream("dbconn.properties"));
+    Properties configProps = loadConfig();
 
     final String PROPERTY_NAME = "flightapp.tablename_suffix";
 
@@ -63,4 +170,15 @@ public class DBConnUtils {
       return suffix;
     }
   }
+
+  private static synchronized Properties loadConfig() throws IOException {
+    if (configProps == null) {
+      Properties props = new Properties();
+      try (FileInputStream in = new FileInputStream("dbconn.properties")) {
+        props.load(in);
+      }
+      configProps = props;
+    }
+    return configProps;
+  }
 }
@@ -0,0 +1,401 @@
+package flightapp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of the bookings made by this process, written through a memory-mapped
+ * file, with periodic checkpoints, so the seat counts survive a restart without a recount.
+ *
+ * The state kept is the number of seats booked on each flight and the highest reservation ID
+ * seen. A checkpoint file holds the whole state; the journal holds the events since. On startup
+ * the checkpoint is loaded, the journal's tail replayed, and the reservations above the
+ * journal's high-water mark (made by other processes, or lost in a crash) read back by ID. If
+ * there is no usable checkpoint, or the reservations table has gone backwards, the start is cold:
+ * SeatInventory recounts the seats from the database and hands the counts to {@link #reset}.
+ *
+ * The database stays the source of truth, and commands always ask it. The journal is not forced
+ * to disk after each event, and checkpoints are written outside the lock that appends events.
+ *
+ * Enabled by setting flightapp.journal.path.
+ */
+public class EventJournal {
+  private static final String MAX_RESERVATION_SQL = "SELECT coalesce(max(reservationID), 0) AS max_id "
+    + "FROM reservations_ishaj83";
+
+  private static final String RESERVATIONS_SINCE_SQL = "SELECT reservationID, flightID1, flightID2 "
+    + "FROM reservations_ishaj83 WHERE reservationID > ?";
+
+  private static final String LEGS_SINCE_SQL = "SELECT fid FROM reservation_legs_ishaj83 "
+    + "WHERE reservationID > ?";
+
+  private static final int JOURNAL_MAGIC = 0x464a4e4c;     // FJNL
+  private static final int CHECKPOINT_MAGIC = 0x464a4350;  // FJCP
+  private static final int VERSION = 2;
+  private static final int HEADER_BYTES = 16;
+
+  private static final byte BOOK = 1;
+
+  private static EventJournal instance;
+  private static boolean configured = false;
+
+  private final Path checkpointPath;
+  private final MappedByteBuffer journal;
+  private final int checkpointEvents;
+  // serializes checkpoint file writes, which happen outside the journal's lock
+  private final Object checkpointFile = new Object();
+  private int checkpointWritten;
+
+  // journal records of earlier generations are already in the checkpoint
+  private int generation;
+  private int eventsSinceCheckpoint;
+
+  private final Map<Integer, Integer> booked = new HashMap<>();
+  private int highWater;
+
+  // true if startup replayed the journal rather than rebuilding from the reservations table
+  private boolean warm;
+
+  EventJournal(Path path, int sizeBytes, int checkpointEvents) throws IOException {
+    this.checkpointPath = Paths.get(path + ".checkpoint");
+    this.checkpointEvents = checkpointEvents;
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                                                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      journal = channel.map(FileChannel.MapMode.READ_WRITE, 0, sizeBytes);
+    }
+  }
+
+  /**
+   * Opens the journal and recovers the booking state, once per process
+   *
+   * @param conn a primary connection, used to reconcile with the reservations table
+   * @return null if no journal is configured
+   */
+  public static synchronized EventJournal open(Connection conn) throws SQLException {
+    if (!configured) {
+      String path = DBConnUtils.getProperty("flightapp.journal.path", null);
+      if (path != null) {
+        try {
+          EventJournal j = new EventJournal(Paths.get(path),
+              Integer.parseInt(DBConnUtils.getProperty("flightapp.journal.size_mb", "64")) * 1024 * 1024,
+              Integer.parseInt(DBConnUtils.getProperty("flightapp.journal.checkpoint_events", "10000")));
+          j.recover(conn);
+          instance = j;
+        } catch (IOException e) {
+          // run without a journal rather than not at all
+          e.printStackTrace();
+        }
+      }
+      configured = true;
+    }
+    return instance;
+  }
+
+  /**
+   * Returns the journal opened by {@link #open}
+   *
+   * @return null if no journal is configured or it isn't open yet
+   */
+  public static synchronized EventJournal getInstance() {
+    return instance;
+  }
+
+  /**
+   * Whether startup recovered the state from the checkpoint and journal, so the booking tables
+   * were consistent with this process's last run
+   */
+  public synchronized boolean isWarm() {
+    return warm;
+  }
+
+  private synchronized void recover(Connection conn) throws SQLException, IOException {
+    // a checkpoint that was never written leaves the journal a generation ahead of it
+    warm = readCheckpoint() && journal.getInt(0) == JOURNAL_MAGIC
+      && journal.getInt(4) == VERSION && journal.getInt(8) == generation;
+    if (warm) {
+      replay();
+    }
+
+    long maxId;
+    try (PreparedStatement ps = conn.prepareStatement(MAX_RESERVATION_SQL);
+         ResultSet rs = ps.executeQuery()) {
+      rs.next();
+      maxId = rs.getLong("max_id");
+    }
+    if (maxId < highWater) {
+      // the reservations table was cleared or restored since the checkpoint
+      warm = false;
+    }
+    if (warm) {
+      loadSince(conn, highWater);
+      writeCheckpoint(startCheckpoint());
+    } else {
+      // SeatInventory recounts, then resets the state to its counts
+      booked.clear();
+      highWater = (int) maxId;
+    }
+  }
+
+  /**
+   * Adds the reservations above {@code after} from the database to the state
+   */
+  private void loadSince(Connection conn, int after) throws SQLException {
+    try (PreparedStatement ps = conn.prepareStatement(RESERVATIONS_SINCE_SQL)) {
+      ps.setInt(1, after);
+      try (ResultSet rs = ps.executeQuery()) {
+        while (rs.next()) {
+          int resId = rs.getInt("reservationID");
+          booked.merge(rs.getInt("flightID1"), 1, Integer::sum);
+          int second = rs.getInt("flightID2");
+          if (!rs.wasNull()) {
+            booked.merge(second, 1, Integer::sum);
+          }
+          highWater = Math.max(highWater, resId);
+        }
+      }
+    }
+    try (PreparedStatement ps = conn.prepareStatement(LEGS_SINCE_SQL)) {
+      ps.setInt(1, after);
+      try (ResultSet rs = ps.executeQuery()) {
+        while (rs.next()) {
+          booked.merge(rs.getInt("fid"), 1, Integer::sum);
+        }
+      }
+    }
+  }
+
+  /**
+   * Replaces the state with seat counts recounted from the database, after a cold start
+   */
+  public void reset(Map<Integer, Integer> counts) {
+    byte[] checkpoint;
+    synchronized (this) {
+      booked.clear();
+      booked.putAll(counts);
+      checkpoint = startCheckpoint();
+    }
+    writeCheckpoint(checkpoint);
+  }
+
+  /**
+   * Records a committed booking. A failure is only reported, since the booking stands.
+   *
+   * @param fids the itinerary's flights, in order
+   */
+  public void recordBook(int reservationId, String username, int dayOfMonth, List<Integer> fids) {
+    try {
+      byte[] user = username.getBytes(StandardCharsets.UTF_8);
+      ByteBuffer payload = ByteBuffer.allocate(12 + 4 * fids.size() + 2 + user.length);
+      payload.putInt(reservationId).putInt(dayOfMonth).putInt(fids.size());
+      for (int fid : fids) {
+        payload.putInt(fid);
+      }
+      payload.putShort((short) user.length).put(user);
+      append(BOOK, payload.array());
+    } catch (RuntimeException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private void append(byte type, byte[] payload) {
+    byte[] checkpoint;
+    synchronized (this) {
+      apply(type, ByteBuffer.wrap(payload));
+      int recordBytes = 13 + payload.length;
+      if (++eventsSinceCheckpoint < checkpointEvents
+          && journal.position() + recordBytes + 4 <= journal.capacity()) {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+        journal.putInt(payload.length).putInt(generation).put(type).put(payload)
+          .putInt((int) crc.getValue());
+        // a zero length marks the end of the journal
+        journal.putInt(journal.position(), 0);
+        return;
+      }
+      // the checkpoint includes this event and empties the journal
+      checkpoint = startCheckpoint();
+    }
+    writeCheckpoint(checkpoint);
+  }
+
+  private void apply(byte type, ByteBuffer payload) {
+    int resId = payload.getInt();
+    if (type == BOOK) {
+      payload.getInt();
+      int legs = payload.getInt();
+      for (int i = 0; i < legs; i++) {
+        booked.merge(payload.getInt(), 1, Integer::sum);
+      }
+      highWater = Math.max(highWater, resId);
+    }
+  }
+
+  /**
+   * Applies the journal's records of the current generation, stopping at the first torn or
+   * stale record
+   *
+   * @return the number of records applied
+   */
+  private int replay() {
+    int count = 0;
+    int position = HEADER_BYTES;
+    while (position + 13 <= journal.capacity()) {
+      int length = journal.getInt(position);
+      if (length <= 0 || position + 13 + length > journal.capacity()
+          || journal.getInt(position + 4) != generation) {
+        break;
+      }
+      byte type = journal.get(position + 8);
+      byte[] payload = new byte[length];
+      journal.get(position + 9, payload);
+      CRC32 crc = new CRC32();
+      crc.update(type);
+      crc.update(payload);
+      if (journal.getInt(position + 9 + length) != (int) crc.getValue()) {
+        break;
+      }
+      apply(type, ByteBuffer.wrap(payload));
+      position += 13 + length;
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Serializes the whole state as the next generation's checkpoint, then starts that generation
+   * with an empty journal. The caller writes the checkpoint with {@link #writeCheckpoint} once it
+   * no longer holds the lock.
+   */
+  private byte[] startCheckpoint() {
+    byte[] checkpoint;
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(CHECKPOINT_MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(generation + 1);
+      out.writeInt(highWater);
+      out.writeInt(booked.size());
+      for (Map.Entry<Integer, Integer> e : booked.entrySet()) {
+        out.writeInt(e.getKey());
+        out.writeInt(e.getValue());
+      }
+      CRC32 crc = new CRC32();
+      crc.update(bytes.toByteArray());
+      out.writeLong(crc.getValue());
+      out.flush();
+      checkpoint = bytes.toByteArray();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+
+    // records of the old generation are now ignored; until the checkpoint is written, a restart
+    // finds the journal a generation ahead and starts cold
+    generation++;
+    journal.putInt(0, JOURNAL_MAGIC).putInt(4, VERSION).putInt(8, generation).putInt(12, 0);
+    journal.putInt(HEADER_BYTES, 0);
+    journal.position(HEADER_BYTES);
+    eventsSinceCheckpoint = 0;
+    return checkpoint;
+  }
+
+  /**
+   * Writes a checkpoint from {@link #startCheckpoint}, unless a later one was written already.
+   * A failure is only reported: the journal is already a generation ahead, so a restart starts
+   * cold.
+   */
+  private void writeCheckpoint(byte[] checkpoint) {
+    int checkpointGeneration = ByteBuffer.wrap(checkpoint).getInt(8);
+    synchronized (checkpointFile) {
+      if (checkpointGeneration <= checkpointWritten) {
+        return;
+      }
+      try {
+        Path temp = Paths.get(checkpointPath + ".tmp");
+        Files.write(temp, checkpoint);
+        Files.move(temp, checkpointPath, StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+      } catch (IOException e) {
+        e.printStackTrace();
+        return;
+      }
+      checkpointWritten = checkpointGeneration;
+    }
+  }
+
+  /**
+   * Loads the checkpoint file into the state
+   *
+   * @return false if there is no valid checkpoint
+   */
+  private boolean readCheckpoint() throws IOException {
+    if (!Files.exists(checkpointPath)) {
+      return false;
+    }
+    byte[] bytes = Files.readAllBytes(checkpointPath);
+    if (bytes.length < 8) {
+      return false;
+    }
+    CRC32 crc = new CRC32();
+    crc.update(bytes, 0, bytes.length - 8);
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+    if (in.readInt() != CHECKPOINT_MAGIC || in.readInt() != VERSION
+        || ByteBuffer.wrap(bytes, bytes.length - 8, 8).getLong() != crc.getValue()) {
+      return false;
+    }
+    generation = in.readInt();
+    highWater = in.readInt();
+    int flights = in.readInt();
+    for (int i = 0; i < flights; i++) {
+      booked.put(in.readInt(), in.readInt());
+    }
+    checkpointWritten = generation;
+    return true;
+  }
+
+  /**
+   * Get the number of seats booked on all flights together
+   */
+  public synchronized long getTotalBooked() {
+    long total = 0;
+    for (int seats : booked.values()) {
+      total += seats;
+    }
+    return total;
+  }
+
+  /**
+   * Forgets every booking. Must be called whenever the reservations table is cleared.
+   */
+  public void clear() {
+    byte[] checkpoint;
+    synchronized (this) {
+      booked.clear();
+      highWater = 0;
+      checkpoint = startCheckpoint();
+    }
+    writeCheckpoint(checkpoint);
+  }
+}
@@ -0,0 +1,316 @@
+package flightapp;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Repeatable micro-benchmarks for the {@code QueryAbstract} operations.
+ *
+ * Runs against the database in dbconn.properties, which must be a scratch local Postgres with
+ * the flights-data tables loaded: users and reservations are cleared before every benchmark.
+ * If the Flights table is empty it is first filled with a synthetic schedule. Results are
+ * written as a JSON array, one object per benchmark and parameter set.
+ *
+ * Usage: FlightBenchmarks [--out file] [--synthetic flights] [--warmup n] [--iterations n]
+ *                         [--threads max]
+ */
+public class FlightBenchmarks {
+  private static final String[] SYNTHETIC_CITIES = {
+    "Seattle WA", "Boston MA", "Chicago IL", "Denver CO", "Atlanta GA", "Dallas/Fort Worth TX",
+    "New York NY", "Los Angeles CA", "San Francisco CA", "Miami FL", "Phoenix AZ", "Detroit MI",
+    "Minneapolis MN", "Houston TX", "Portland OR", "Salt Lake City UT", "Las Vegas NV",
+    "Orlando FL", "Charlotte NC", "Philadelphia PA"
+  };
+
+  private static final String INSERT_FLIGHT_SQL = "INSERT INTO Flights (fid, month_id, day_of_month, "
+    + "day_of_week_id, carrier_id, flight_num, origin_city, origin_state, dest_city, dest_state, "
+    + "canceled, actual_time, distance, capacity, price) "
+    + "VALUES (?, 7, ?, ?, ?, ?, ?, ?, ?, ?, 0, ?, ?, ?, ?)";
+
+  static final String ROUTES_SQL = "SELECT origin_city, dest_city, day_of_month FROM Flights "
+    + "WHERE canceled = 0 GROUP BY origin_city, dest_city, day_of_month "
+    + "ORDER BY count(*) DESC LIMIT 200";
+
+  private final int warmup;
+  private final int iterations;
+  private final int maxThreads;
+  private final List<String> results = new ArrayList<>();
+  private final List<String[]> routes = new ArrayList<>();
+  private final Random random = new Random(42);
+  private int userCounter = 0;
+
+  FlightBenchmarks(int warmup, int iterations, int maxThreads) {
+    this.warmup = warmup;
+    this.iterations = iterations;
+    this.maxThreads = maxThreads;
+  }
+
+  public static void main(String[] args) throws Exception {
+    String out = "bench-results.json";
+    int synthetic = 200000;
+    int warmup = 50;
+    int iterations = 200;
+    int threads = 8;
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      switch (args[i]) {
+        case "--out": out = args[i + 1]; break;
+        case "--synthetic": synthetic = Integer.parseInt(args[i + 1]); break;
+        case "--warmup": warmup = Integer.parseInt(args[i + 1]); break;
+        case "--iterations": iterations = Integer.parseInt(args[i + 1]); break;
+        case "--threads": threads = Integer.parseInt(args[i + 1]); break;
+        default: throw new IllegalArgumentException("Unknown option " + args[i]);
+      }
+    }
+
+    FlightBenchmarks bench = new FlightBenchmarks(warmup, iterations, threads);
+    bench.setUp(synthetic);
+    bench.runAll();
+    bench.write(out);
+    System.out.println("Wrote " + bench.results.size() + " results to " + out);
+  }
+
+  /**
+   * Fills an empty Flights table with a synthetic schedule and picks the routes to search
+   */
+  void setUp(int syntheticFlights) throws SQLException, IOException {
+    try (Connection conn = DBConnUtils.openConnection()) {
+      try (Statement s = conn.createStatement();
+           ResultSet rs = s.executeQuery("SELECT count(*) FROM Flights")) {
+        rs.next();
+        if (rs.getLong(1) == 0 && syntheticFlights > 0) {
+          loadSyntheticFlights(conn, syntheticFlights);
+        }
+      }
+      try (Statement s = conn.createStatement();
+           ResultSet rs = s.executeQuery(ROUTES_SQL)) {
+        while (rs.next()) {
+          routes.add(new String[] {rs.getString(1), rs.getString(2), rs.getString(3)});
+        }
+      }
+    }
+    if (routes.isEmpty()) {
+      throw new IllegalStateException("Flights table has no searchable routes");
+    }
+  }
+
+  private void loadSyntheticFlights(Connection conn, int count) throws SQLException, IOException {
+    List<String> carriers = new ArrayList<>();
+    for (String line : Files.readAllLines(Paths.get("flights-data", "carriers.csv"),
+                                          StandardCharsets.UTF_8)) {
+      carriers.add(line.substring(0, line.indexOf(',')));
+    }
+
+    conn.setAutoCommit(false);
+    try (PreparedStatement ps = conn.prepareStatement(INSERT_FLIGHT_SQL)) {
+      for (int fid = 1; fid <= count; fid++) {
+        String origin = SYNTHETIC_CITIES[random.nextInt(SYNTHETIC_CITIES.length)];
+        String dest = SYNTHETIC_CITIES[random.nextInt(SYNTHETIC_CITIES.length)];
+        if (origin.equals(dest)) {
+          dest = SYNTHETIC_CITIES[(Arrays.asList(SYNTHETIC_CITIES).indexOf(origin) + 1)
+                                  % SYNTHETIC_CITIES.length];
+        }
+        int day = 1 + random.nextInt(31);
+        ps.setInt(1, fid);
+        ps.setInt(2, day);
+        ps.setInt(3, 1 + (day - 1) % 7);
+        ps.setString(4, carriers.get(random.nextInt(Math.min(carriers.size(), 30))));
+        ps.setInt(5, 1 + random.nextInt(9999));
+        ps.setString(6, origin);
+        ps.setString(7, origin.substring(origin.lastIndexOf(' ') + 1));
+        ps.setString(8, dest);
+        ps.setString(9, dest.substring(dest.lastIndexOf(' ') + 1));
+        ps.setInt(10, 40 + random.nextInt(400));
+        ps.setInt(11, 100 + random.nextInt(2500));
+        ps.setInt(12, 1 + random.nextInt(20));
+        ps.setInt(13, 50 + random.nextInt(950));
+        ps.addBatch();
+        if (fid % 1000 == 0) {
+          ps.executeBatch();
+        }
+      }
+      ps.executeBatch();
+      conn.commit();
+    } finally {
+      conn.setAutoCommit(true);
+    }
+  }
+
+  void runAll() throws Exception {
+    for (int n : new int[] {1, 10, 100}) {
+      benchSearch("search_direct", true, n);
+      benchSearch("search_indirect", false, n);
+    }
+    benchLogin();
+    for (int threads = 1; threads <= maxThreads; threads *= 2) {
+      benchBook(threads);
+    }
+    benchPay();
+    for (int reservations : new int[] {1, 8, 31}) {
+      benchReservations(reservations);
+    }
+  }
+
+  private void benchSearch(String name, boolean direct, int n) throws Exception {
+    Query q = new Query();
+    try {
+      measure(name, "numberOfItineraries=" + n, 1, thread -> () -> {
+        String[] r = routes.get(random.nextInt(routes.size()));
+        q.search(r[0], r[1], direct, Integer.parseInt(r[2]), n);
+      });
+    } finally {
+      q.closeConnection();
+    }
+  }
+
+  private void benchLogin() throws Exception {
+    clearTables();
+    Query setup = new Query(true);
+    setup.create("bench_login", "password", 100);
+    // A fresh session per login; sessions borrow connections per command, so this is cheap
+    measure("login", "", 1, thread -> () -> {
+      Query q = new Query(true);
+      String response = q.login("bench_login", "password");
+      if (!response.startsWith("Logged in")) {
+        throw new IllegalStateException(response);
+      }
+    });
+  }
+
+  private void benchBook(int threads) throws Exception {
+    clearTables();
+    measure("book", "sessions=" + threads, threads, thread -> {
+      // untimed setup: a new user with a fresh search, so the same-day rule never applies
+      Query q = newLoggedInSession(1000000);
+      String[] r = routes.get(random.nextInt(routes.size()));
+      q.search(r[0], r[1], true, Integer.parseInt(r[2]), 1);
+      return () -> q.book(0);
+    });
+  }
+
+  private void benchPay() throws Exception {
+    clearTables();
+    measure("pay", "", 1, thread -> {
+      Query q = newLoggedInSession(1000000);
+      String[] r = routes.get(random.nextInt(routes.size()));
+      q.search(r[0], r[1], true, Integer.parseInt(r[2]), 1);
+      String booked = q.book(0);
+      int resId = Integer.parseInt(booked.substring(booked.lastIndexOf(' ') + 1).trim());
+      return () -> q.pay(resId);
+    });
+  }
+
+  private void benchReservations(int count) throws Exception {
+    clearTables();
+    Query q = newLoggedInSession(1000000);
+    // one reservation per day, on the busiest routes of each day
+    Set<String> bookedDays = new HashSet<>();
+    for (String[] r : routes) {
+      if (bookedDays.size() >= count) {
+        break;
+      }
+      if (bookedDays.add(r[2])) {
+        q.search(r[0], r[1], true, Integer.parseInt(r[2]), 1);
+        q.book(0);
+      }
+    }
+    measure("reservations", "reservations=" + bookedDays.size(), 1, thread -> q::reservations);
+  }
+
+  private Query newLoggedInSession(int balance) throws SQLException, IOException {
+    Query q = new Query(true);
+    String user;
+    synchronized (this) {
+      user = "bench_user" + (userCounter++);
+    }
+    q.create(user, "password", balance);
+    q.login(user, "password");
+    return q;
+  }
+
+  private void clearTables() throws SQLException, IOException {
+    Query q = new Query(true);
+    q.clearTablesWrap();
+    SearchCache cache = SearchCache.getInstance();
+    if (cache != null) {
+      cache.clear();
+    }
+  }
+
+  /**
+   * An operation whose setup is excluded from the measurement
+   */
+  interface Op {
+    void run() throws Exception;
+  }
+
+  interface OpFactory {
+    Op next(int thread) throws Exception;
+  }
+
+  /**
+   * Runs warmup then measured operations on {@code threads} threads and records throughput and
+   * latency percentiles
+   */
+  private void measure(String name, String params, int threads, OpFactory factory) throws Exception {
+    runThreads(threads, warmup, factory, null);
+    long[] latencies = new long[threads * iterations];
+    long start = System.nanoTime();
+    runThreads(threads, iterations, factory, latencies);
+    long elapsed = System.nanoTime() - start;
+
+    Arrays.sort(latencies);
+    double mean = Arrays.stream(latencies).average().orElse(0) / 1000.0;
+    String json = String.format(Locale.ROOT,
+        "{\"benchmark\": \"%s\", \"params\": \"%s\", \"threads\": %d, \"ops\": %d, "
+        + "\"throughput_ops_per_s\": %.2f, \"mean_us\": %.2f, \"p50_us\": %.2f, "
+        + "\"p99_us\": %.2f, \"max_us\": %.2f}",
+        name, params, threads, latencies.length, latencies.length / (elapsed / 1e9), mean,
+        percentile(latencies, 0.50), percentile(latencies, 0.99),
+        latencies[latencies.length - 1] / 1000.0);
+    results.add(json);
+    System.out.println(json);
+  }
+
+  private void runThreads(int threads, int opsPerThread, OpFactory factory, long[] latencies)
+    throws Exception {
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        int thread = t;
+        futures.add(pool.submit(() -> {
+          for (int i = 0; i < opsPerThread; i++) {
+            Op op = factory.next(thread);
+            long begin = System.nanoTime();
+            op.run();
+            if (latencies != null) {
+              latencies[thread * opsPerThread + i] = System.nanoTime() - begin;
+            }
+          }
+          return null;
+        }));
+      }
+      for (Future<?> f : futures) {
+        f.get();
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private static double percentile(long[] sorted, double p) {
+    int index = (int) Math.ceil(p * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1000.0;
+  }
+
+  private void write(String path) throws IOException {
+    try (Writer w = Files.newBufferedWriter(Paths.get(path), StandardCharsets.UTF_8)) {
+      w.write("[\n  " + String.join(",\n  ", results) + "\n]\n");
+    }
+  }
+}
@@ -0,0 +1,103 @@
+package flightapp;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, process-wide cache of immutable flights keyed by fid.
+ *
+ * Reads never lock. Once the cache is full, each insert evicts an arbitrary entry, which is
+ * enough for a read-mostly working set of recently booked flights. A flight read before an
+ * invalidation is not cached, since it may be the old version of the changed row.
+ */
+public class FlightCache {
+  private final int maxEntries;
+  private final ConcurrentHashMap<Integer, Query.Flight> flights = new ConcurrentHashMap<>();
+  // bumped by every invalidation, before the flights are dropped
+  private final AtomicLong generation = new AtomicLong();
+
+  public FlightCache(int maxEntries) {
+    this.maxEntries = maxEntries;
+  }
+
+  /**
+   * Returns the shared cache, sized by flightapp.flight_cache.size in dbconn.properties
+   */
+  public static FlightCache getInstance() {
+    return Holder.INSTANCE;
+  }
+
+  /**
+   * Returns the cached flight, or null
+   */
+  public Query.Flight get(int fid) {
+    return flights.get(fid);
+  }
+
+  /**
+   * Get the current generation, to pass to {@link #intern} for flights read from the database
+   * after now
+   */
+  public long getGeneration() {
+    return generation.get();
+  }
+
+  /**
+   * Caches a flight, returning the already-cached instance for its fid if there is one. The
+   * flight is not cached if anything was invalidated since {@code readGeneration}.
+   */
+  public Query.Flight intern(Query.Flight flight, long readGeneration) {
+    Query.Flight cached = flights.get(flight.fid);
+    if (cached != null) {
+      return cached;
+    }
+    if (maxEntries <= 0 || readGeneration != generation.get()) {
+      return flight;
+    }
+    while (flights.size() >= maxEntries) {
+      Iterator<Integer> it = flights.keySet().iterator();
+      if (!it.hasNext()) {
+        break;
+      }
+      flights.remove(it.next());
+    }
+    cached = flights.putIfAbsent(flight.fid, flight);
+    if (cached != null) {
+      return cached;
+    }
+    // an invalidation that ran since the check above may have missed this insert
+    if (readGeneration != generation.get()) {
+      flights.remove(flight.fid, flight);
+    }
+    return flight;
+  }
+
+  /**
+   * Drops a flight, eg after it was changed in the database
+   */
+  public void invalidate(int fid) {
+    generation.incrementAndGet();
+    flights.remove(fid);
+  }
+
+  /**
+   * Drops every flight
+   */
+  public void clear() {
+    generation.incrementAndGet();
+    flights.clear();
+  }
+
+  public int size() {
+    return flights.size();
+  }
+
+  /**
+   * Creates the shared cache on first use, without locking later reads
+   */
+  private static class Holder {
+    static final FlightCache INSTANCE = new FlightCache(
+        Integer.parseInt(DBConnUtils.getProperty("flightapp.flight_cache.size", "100000")));
+  }
+}
@@ -0,0 +1,490 @@
+package flightapp;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * Applies changes to the Flights table to everything the process caches about flights: the
+ * RouteIndex and its FlightStore, the FlightCache, SeatInventory's capacities and the
+ * SearchCache.
+ *
+ * Triggers on Flights send a notification with the fid of each changed flight, and the time the
+ * changing statement finished, when the change commits; a statement that changes more than BULK_CHANGE_ROWS flights,
+ * or truncates the table, sends one notification for the whole table instead. A listener thread
+ * on its own connection re-reads the changed flights, applies price, capacity and cancellation
+ * changes to the store and index in place, reloads the index for any other change (a new,
+ * deleted or rescheduled flight), drops the flights from the caches, and then evicts the cached
+ * searches of the flights' days.
+ *
+ * Staleness is bounded by flightapp.changes.max_staleness_ms. The listener proves its
+ * connection with a round trip at least twice per interval, which also receives every
+ * notification committed before it. If it hasn't done so within the interval, direct and
+ * one-stop searches skip the search cache and the index and go to the database until it catches
+ * up; searches with more stops, which only the index answers, still use it. Notifications sent
+ * while it was disconnected are lost, so after reconnecting it drops every cache and reloads the
+ * index.
+ *
+ * Enabled by setting flightapp.changes.listen to true.
+ */
+public class FlightChangeFeed implements FlightChangeFeedMBean {
+  private static final String CHANNEL = "flights_changed_ishaj83";
+  private static final int BULK_CHANGE_ROWS = 1000;
+  private static final long RECONNECT_DELAY_MS = 1000;
+
+  // Statement-level, so a bulk load runs the function once rather than once per row. Each
+  // notification is "fid:ms", or "*:ms" for the whole table, where ms is the wall-clock time the
+  // statement's changes were made, not the transaction's start; notifications are delivered on
+  // commit, so the lag measured from it includes the rest of the transaction.
+  private static final String CREATE_FUNCTION_SQL = "CREATE OR REPLACE FUNCTION "
+    + "notify_flights_changed_ishaj83() RETURNS trigger LANGUAGE plpgsql AS $$ "
+    + "DECLARE sent_at text; "
+    + "changed int[]; "
+    + "BEGIN "
+    + "IF TG_OP = 'INSERT' THEN SELECT array_agg(fid) INTO changed FROM new_rows; "
+    + "ELSIF TG_OP = 'DELETE' THEN SELECT array_agg(fid) INTO changed FROM old_rows; "
+    + "ELSIF TG_OP = 'UPDATE' THEN SELECT array_agg(fid) INTO changed "
+    + "FROM (SELECT fid FROM new_rows UNION SELECT fid FROM old_rows) f; "
+    + "END IF; "
+    + "sent_at := floor(extract(epoch FROM clock_timestamp()) * 1000)::bigint::text; "
+    + "IF TG_OP = 'TRUNCATE' OR cardinality(changed) > " + BULK_CHANGE_ROWS + " THEN "
+    + "PERFORM pg_notify('" + CHANNEL + "', '*:' || sent_at); "
+    + "ELSIF changed IS NOT NULL THEN "
+    + "PERFORM pg_notify('" + CHANNEL + "', f || ':' || sent_at) FROM unnest(changed) f; "
+    + "END IF; "
+    + "RETURN NULL; "
+    + "END $$";
+
+  private static final String[] CREATE_TRIGGERS_SQL = {
+    "DROP TRIGGER IF EXISTS flights_inserted_ishaj83 ON Flights",
+    "CREATE TRIGGER flights_inserted_ishaj83 AFTER INSERT ON Flights "
+      + "REFERENCING NEW TABLE AS new_rows "
+      + "FOR EACH STATEMENT EXECUTE FUNCTION notify_flights_changed_ishaj83()",
+    "DROP TRIGGER IF EXISTS flights_updated_ishaj83 ON Flights",
+    "CREATE TRIGGER flights_updated_ishaj83 AFTER UPDATE ON Flights "
+      + "REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows "
+      + "FOR EACH STATEMENT EXECUTE FUNCTION notify_flights_changed_ishaj83()",
+    "DROP TRIGGER IF EXISTS flights_deleted_ishaj83 ON Flights",
+    "CREATE TRIGGER flights_deleted_ishaj83 AFTER DELETE ON Flights "
+      + "REFERENCING OLD TABLE AS old_rows "
+      + "FOR EACH STATEMENT EXECUTE FUNCTION notify_flights_changed_ishaj83()",
+    "DROP TRIGGER IF EXISTS flights_truncated_ishaj83 ON Flights",
+    "CREATE TRIGGER flights_truncated_ishaj83 AFTER TRUNCATE ON Flights "
+      + "FOR EACH STATEMENT EXECUTE FUNCTION notify_flights_changed_ishaj83()",
+  };
+
+  private static final String LISTEN_SQL = "LISTEN " + CHANNEL;
+
+  private static final String HEARTBEAT_SQL = "SELECT 1";
+
+  private static final String CHANGED_FLIGHTS_SQL = "SELECT fid, day_of_month, carrier_id, flight_num, "
+    + "origin_city, dest_city, actual_time, capacity, price, canceled FROM Flights WHERE fid = ANY (?)";
+
+  // changes applied so far, by any feed
+  private static final AtomicLong changeCount = new AtomicLong();
+
+  private final long maxStalenessMillis;
+  private final boolean installTriggers;
+  private final CountDownLatch listening = new CountDownLatch(1);
+  // when the last round trip that received every earlier notification started, once they were
+  // all applied
+  private volatile long upToDate;
+
+  private final Histogram lag = new Histogram();
+  private final AtomicLong notifications = new AtomicLong();
+  private final AtomicLong flightsUpdated = new AtomicLong();
+  private final AtomicLong reloads = new AtomicLong();
+  private final AtomicLong searchesEvicted = new AtomicLong();
+  private final AtomicLong reconnects = new AtomicLong();
+
+  public FlightChangeFeed(long maxStalenessMillis, boolean installTriggers) {
+    this.maxStalenessMillis = maxStalenessMillis;
+    this.installTriggers = installTriggers;
+    Thread t = new Thread(this::run, "flightapp-flight-changes");
+    t.setDaemon(true);
+    t.start();
+  }
+
+  /**
+   * Returns the shared feed, starting it on first use and waiting until it listens
+   *
+   * @return null if the feed is disabled
+   */
+  public static FlightChangeFeed getInstance() {
+    return Holder.INSTANCE;
+  }
+
+  private static FlightChangeFeed create() {
+    if (!Boolean.parseBoolean(DBConnUtils.getProperty("flightapp.changes.listen", "false"))) {
+      return null;
+    }
+    FlightChangeFeed feed = new FlightChangeFeed(
+        Long.parseLong(DBConnUtils.getProperty("flightapp.changes.max_staleness_ms", "5000")),
+        Boolean.parseBoolean(DBConnUtils.getProperty("flightapp.changes.install_triggers", "true")));
+    feed.registerMBean();
+    try {
+      feed.listening.await(Math.max(feed.maxStalenessMillis, 1000), TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return feed;
+  }
+
+  /**
+   * Get the number of changes applied so far. A copy of the flights that was loaded while this
+   * didn't change missed no change.
+   */
+  public static long getChangeCount() {
+    return changeCount.get();
+  }
+
+  private void registerMBean() {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName("flightapp:type=FlightChangeFeed");
+      if (!server.isRegistered(name)) {
+        server.registerMBean(this, name);
+      }
+    } catch (JMException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private void run() {
+    boolean reconnected = false;
+    while (true) {
+      try (Connection conn = DBConnUtils.openConnection()) {
+        if (!reconnected && installTriggers) {
+          installTriggers(conn);
+        }
+        try (Statement s = conn.createStatement()) {
+          s.execute(LISTEN_SQL);
+        }
+        if (reconnected) {
+          reconnects.incrementAndGet();
+          reloadAll(conn);
+        }
+        reconnected = true;
+        listening.countDown();
+        listen(conn);
+      } catch (SQLException | IOException | RuntimeException e) {
+        e.printStackTrace();
+      }
+      try {
+        Thread.sleep(RECONNECT_DELAY_MS);
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  private void installTriggers(Connection conn) {
+    try (Statement s = conn.createStatement()) {
+      conn.setAutoCommit(false);
+      s.execute(CREATE_FUNCTION_SQL);
+      for (String sql : CREATE_TRIGGERS_SQL) {
+        s.execute(sql);
+      }
+      conn.commit();
+    } catch (SQLException e) {
+      // eg no permission; the triggers may have been installed by someone who has it
+      e.printStackTrace();
+      try {
+        conn.rollback();
+      } catch (SQLException ignored) {
+        // the connection is reopened if it is broken
+      }
+    } finally {
+      try {
+        conn.setAutoCommit(true);
+      } catch (SQLException ignored) {
+        // the connection is reopened if it is broken
+      }
+    }
+  }
+
+  /**
+   * Waits for notifications and applies them, until the connection fails
+   */
+  private void listen(Connection conn) throws SQLException {
+    PGConnection pg = conn.unwrap(PGConnection.class);
+    int wait = (int) Math.max(1, maxStalenessMillis / 2);
+    try (Statement heartbeat = conn.createStatement()) {
+      while (true) {
+        List<PGNotification> received = new ArrayList<>();
+        add(received, pg.getNotifications(wait));
+        // the server sends every notification committed so far before answering
+        long checkedAt = System.currentTimeMillis();
+        heartbeat.execute(HEARTBEAT_SQL);
+        add(received, pg.getNotifications());
+        if (!received.isEmpty()) {
+          apply(conn, received);
+        }
+        upToDate = checkedAt;
+      }
+    }
+  }
+
+  private static void add(List<PGNotification> received, PGNotification[] notifications) {
+    if (notifications != null) {
+      for (PGNotification n : notifications) {
+        if (CHANNEL.equals(n.getName())) {
+          received.add(n);
+        }
+      }
+    }
+  }
+
+  private void apply(Connection conn, List<PGNotification> received) throws SQLException {
+    notifications.addAndGet(received.size());
+    Set<Integer> fids = new HashSet<>();
+    List<Long> sentAt = new ArrayList<>();
+    boolean everything = false;
+    for (PGNotification n : received) {
+      String[] parts = n.getParameter().split(":");
+      if (parts[0].equals("*")) {
+        everything = true;
+      } else {
+        fids.add(Integer.parseInt(parts[0]));
+      }
+      sentAt.add(Long.parseLong(parts[1]));
+    }
+
+    if (everything || fids.size() > BULK_CHANGE_ROWS) {
+      reloadAll(conn);
+    } else {
+      applyFlights(conn, fids);
+    }
+    long appliedAt = System.currentTimeMillis();
+    for (long sent : sentAt) {
+      lag.record(Math.max(0, appliedAt - sent));
+    }
+  }
+
+  /**
+   * Applies changes to a few flights
+   */
+  private void applyFlights(Connection conn, Set<Integer> fids) throws SQLException {
+    Map<Integer, Change> changes = new HashMap<>();
+    try (PreparedStatement ps = conn.prepareStatement(CHANGED_FLIGHTS_SQL)) {
+      ps.setArray(1, conn.createArrayOf("integer", fids.toArray()));
+      try (ResultSet rs = ps.executeQuery()) {
+        while (rs.next()) {
+          changes.put(rs.getInt("fid"), new Change(rs));
+        }
+      }
+    }
+
+    // first, so an index loaded from here on is checked against this change
+    changeCount.incrementAndGet();
+    RouteIndex index = RouteIndex.current();
+    RouteIndex updated = index;
+    boolean reload = false;
+    boolean unknownDays = false;
+    Set<Integer> days = new HashSet<>();
+    for (int fid : fids) {
+      Change c = changes.get(fid);
+      FlightCache.getInstance().invalidate(fid);
+      SeatInventory.forgetCapacity(fid);
+      FlightStore store = index == null ? null : index.getStore();
+      int row = store == null ? -1 : store.row(fid);
+      if (c != null) {
+        days.add(c.day);
+      }
+      if (row >= 0) {
+        days.add(store.day(row));
+      } else if (c == null) {
+        // deleted, and its day is no longer known
+        unknownDays = true;
+        continue;
+      }
+      if (store == null) {
+        continue;
+      }
+      if (row < 0 || c == null
+          || !store.sameSchedule(row, c.day, c.carrier, c.flightNum, c.origin, c.dest, c.time)) {
+        reload = true;
+        continue;
+      }
+      store.setPrice(row, c.price);
+      store.setCapacity(row, c.capacity);
+      if (store.canceled(row) != c.canceled) {
+        store.setCanceled(row, c.canceled);
+        updated = updated.withRow(row, !c.canceled);
+      }
+      flightsUpdated.incrementAndGet();
+    }
+
+    if (reload) {
+      reloads.incrementAndGet();
+      RouteIndex.reload(conn);
+    } else {
+      if (updated != index) {
+        RouteIndex.replace(updated);
+      }
+      deleteSnapshot();
+    }
+    // last, so a search can't cache a result from before the change
+    SearchCache cache = SearchCache.getInstance();
+    if (cache != null) {
+      if (unknownDays) {
+        searchesEvicted.addAndGet(cache.size());
+        cache.clear();
+      } else {
+        searchesEvicted.addAndGet(cache.evictDays(days));
+      }
+    }
+  }
+
+  /**
+   * Drops everything cached about flights and reloads the index
+   */
+  private void reloadAll(Connection conn) throws SQLException {
+    reloads.incrementAndGet();
+    changeCount.incrementAndGet();
+    FlightCache.getInstance().clear();
+    SeatInventory.forgetCapacities();
+    deleteSnapshot();
+    RouteIndex.reload(conn);
+    SearchCache cache = SearchCache.getInstance();
+    if (cache != null) {
+      searchesEvicted.addAndGet(cache.size());
+      cache.clear();
+    }
+  }
+
+  /**
+   * Deletes the flight snapshot, which no longer matches the table
+   */
+  private static void deleteSnapshot() {
+    String snapshot = DBConnUtils.getProperty("flightapp.snapshot.path", null);
+    if (snapshot != null) {
+      try {
+        Files.deleteIfExists(Paths.get(snapshot));
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Get whether changes committed more than flightapp.changes.max_staleness_ms ago may not have
+   * been applied yet
+   */
+  public boolean isBehind() {
+    return getStalenessMillis() > maxStalenessMillis;
+  }
+
+  /**
+   * Formats the feed's counters and lag, in milliseconds
+   */
+  public String report() {
+    return String.format(Locale.ROOT, "flight changes: %d notifications, %d flights updated, "
+                         + "%d reloads, %d searches evicted, %d reconnects; lag p50 %d ms, "
+                         + "p99 %d ms, max %d ms; staleness %d ms%n",
+                         getNotifications(), getFlightsUpdated(), getReloads(),
+                         getSearchesEvicted(), getReconnects(), getLagP50Millis(),
+                         getLagP99Millis(), getLagMaxMillis(), getStalenessMillis());
+  }
+
+  @Override
+  public long getNotifications() {
+    return notifications.get();
+  }
+
+  @Override
+  public long getFlightsUpdated() {
+    return flightsUpdated.get();
+  }
+
+  @Override
+  public long getReloads() {
+    return reloads.get();
+  }
+
+  @Override
+  public long getSearchesEvicted() {
+    return searchesEvicted.get();
+  }
+
+  @Override
+  public long getReconnects() {
+    return reconnects.get();
+  }
+
+  @Override
+  public long getLagP50Millis() {
+    return lag.percentile(0.5);
+  }
+
+  @Override
+  public long getLagP99Millis() {
+    return lag.percentile(0.99);
+  }
+
+  @Override
+  public long getLagMaxMillis() {
+    return lag.getMax();
+  }
+
+  @Override
+  public long getStalenessMillis() {
+    long at = upToDate;
+    return at == 0 ? Long.MAX_VALUE : Math.max(0, System.currentTimeMillis() - at);
+  }
+
+  /**
+   * Starts the shared feed on first use, without locking later searches
+   */
+  private static class Holder {
+    static final FlightChangeFeed INSTANCE = create();
+  }
+
+  /**
+   * A flight as it is now in the Flights table
+   */
+  private static class Change {
+    final int day;
+    final String carrier;
+    final String flightNum;
+    final String origin;
+    final String dest;
+    final int time;
+    final int capacity;
+    final int price;
+    final boolean canceled;
+
+    Change(ResultSet rs) throws SQLException {
+      day = rs.getInt("day_of_month");
+      carrier = rs.getString("carrier_id");
+      flightNum = rs.getString("flight_num");
+      origin = rs.getString("origin_city");
+      dest = rs.getString("dest_city");
+      time = rs.getInt("actual_time");
+      capacity = rs.getInt("capacity");
+      price = rs.getInt("price");
+      canceled = rs.getInt("canceled") != 0;
+    }
+  }
+}
@@ -0,0 +1,38 @@
+package flightapp;
+
+/**
+ * JMX view of the flight change feed, registered as flightapp:type=FlightChangeFeed
+ */
+public interface FlightChangeFeedMBean {
+  long getNotifications();
+
+  /**
+   * Get the number of flights whose changes were applied in place
+   */
+  long getFlightsUpdated();
+
+  /**
+   * Get the number of times the index was reloaded, after a change it can't apply in place, a
+   * bulk change or a reconnect
+   */
+  long getReloads();
+
+  long getSearchesEvicted();
+
+  long getReconnects();
+
+  /**
+   * Get the median time from a change being made to its being applied, in milliseconds
+   */
+  long getLagP50Millis();
+
+  long getLagP99Millis();
+
+  long getLagMaxMillis();
+
+  /**
+   * Get how long ago the feed was last known to have applied every committed change, in
+   * milliseconds
+   */
+  long getStalenessMillis();
+}
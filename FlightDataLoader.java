@@ -0,0 +1,385 @@
+package flightapp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+
+/**
+ * Bulk loads the flights-data CSV files into the database in dbconn.properties.
+ *
+ * Each file is memory-mapped and split into chunks at line boundaries, and the chunks are
+ * streamed in parallel through the driver's COPY API, one connection per loading thread. The
+ * table is emptied first, so a load can be repeated, and its secondary indexes are dropped for
+ * the load and rebuilt afterwards. Chunks commit separately, so a load that fails empties the
+ * table again rather than leave part of the file in it. Fields must not contain line breaks.
+ *
+ * A load is refused while rows elsewhere refer to the table's rows: rows of tables with a
+ * foreign key to it, and for FLIGHTS the app's reservations and seat counters. Empty those
+ * first (clearTables), or load the referencing tables again after this one.
+ *
+ * Usage: FlightService load [--threads n] [--chunk-mb m] (file | table=file)...
+ *
+ * A file's table is taken from its name (carriers.csv loads CARRIERS, flights-small.csv loads
+ * FLIGHTS) unless given explicitly. Tables are loaded in the order given, so load the tables
+ * FLIGHTS references first.
+ */
+public class FlightDataLoader {
+  // Secondary indexes of a table: neither the primary key nor backing another constraint
+  private static final String SECONDARY_INDEXES_SQL = "SELECT i.indexrelid::regclass::text AS name, "
+    + "pg_get_indexdef(i.indexrelid) AS definition FROM pg_index i "
+    + "WHERE i.indrelid = ?::regclass AND NOT i.indisprimary "
+    + "AND NOT EXISTS (SELECT 1 FROM pg_constraint c WHERE c.conindid = i.indexrelid)";
+
+  // Tables other than the table itself with a foreign key to it
+  private static final String REFERENCING_TABLES_SQL = "SELECT DISTINCT conrelid::regclass::text AS name "
+    + "FROM pg_constraint WHERE contype = 'f' AND confrelid = ?::regclass AND conrelid <> confrelid";
+
+  private static final String TABLE_EXISTS_SQL = "SELECT to_regclass(?) IS NOT NULL AS present";
+
+  // The app's tables holding fids, which have no foreign key to FLIGHTS
+  private static final String[] FLIGHT_REFERENCING_TABLES =
+    {"reservations_ishaj83", "reservation_legs_ishaj83", "flight_seats_ishaj83"};
+
+  private static final String[] KNOWN_TABLES = {"CARRIERS", "MONTHS", "WEEKDAYS", "FLIGHTS"};
+
+  private final ExecutorService workers;
+  private final long chunkBytes;
+
+  public FlightDataLoader(int threads, long chunkBytes) {
+    this.workers = Executors.newFixedThreadPool(threads, r -> {
+      Thread t = new Thread(r, "flightapp-loader");
+      t.setDaemon(true);
+      return t;
+    });
+    this.chunkBytes = chunkBytes;
+  }
+
+  public static void main(String[] args) throws IOException, SQLException, InterruptedException {
+    int threads = Integer.parseInt(DBConnUtils.getProperty("flightapp.loader.threads",
+        String.valueOf(Runtime.getRuntime().availableProcessors())));
+    long chunkMb = Long.parseLong(DBConnUtils.getProperty("flightapp.loader.chunk_mb", "16"));
+    List<String[]> loads = new ArrayList<>();
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("--threads") && i + 1 < args.length) {
+        threads = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("--chunk-mb") && i + 1 < args.length) {
+        chunkMb = Long.parseLong(args[++i]);
+      } else if (args[i].contains("=")) {
+        loads.add(args[i].split("=", 2));
+      } else {
+        loads.add(new String[] {tableFor(args[i]), args[i]});
+      }
+    }
+    if (loads.isEmpty()) {
+      System.out.println("Usage: FlightService load [--threads n] [--chunk-mb m] (file | table=file)...");
+      return;
+    }
+
+    FlightDataLoader loader = new FlightDataLoader(threads, chunkMb * 1024 * 1024);
+    try {
+      long rows = 0;
+      long start = System.nanoTime();
+      for (String[] load : loads) {
+        rows += loader.load(load[0], Paths.get(load[1]));
+      }
+      report("all tables", rows, System.nanoTime() - start);
+    } finally {
+      loader.workers.shutdownNow();
+    }
+  }
+
+  /**
+   * Guesses the table a flights-data file belongs to from its name
+   */
+  static String tableFor(String file) {
+    String name = Paths.get(file).getFileName().toString().toUpperCase(Locale.ROOT);
+    for (String table : KNOWN_TABLES) {
+      if (name.startsWith(table)) {
+        return table;
+      }
+    }
+    throw new IllegalArgumentException("Cannot tell which table " + file
+                                       + " belongs to; pass it as table=file");
+  }
+
+  /**
+   * Replaces the contents of a table with a CSV file
+   *
+   * @return the number of rows loaded
+   */
+  public long load(String table, Path file) throws SQLException, IOException, InterruptedException {
+    long start = System.nanoTime();
+    Map<String, String> indexes;
+    try (Connection conn = DBConnUtils.openConnection()) {
+      conn.setAutoCommit(false);
+      try (Statement s = conn.createStatement()) {
+        List<String> referencing = referencingTables(conn, table);
+        if (!referencing.isEmpty()) {
+          // no new rows until the referencing tables are truncated along with the table
+          s.executeUpdate("LOCK TABLE " + String.join(", ", referencing) + " IN EXCLUSIVE MODE");
+          for (String other : referencing) {
+            try (ResultSet rs = s.executeQuery("SELECT EXISTS (SELECT 1 FROM " + other + ") AS used")) {
+              rs.next();
+              if (rs.getBoolean("used")) {
+                throw new SQLException("Cannot load " + table + " while " + other
+                                       + " refers to its rows; empty " + other + " first");
+              }
+            }
+          }
+        }
+        indexes = secondaryIndexes(conn, table);
+        // the referencing tables are empty, and a table with a foreign key to this one must be
+        // truncated with it
+        referencing.add(0, table);
+        s.executeUpdate("TRUNCATE " + String.join(", ", referencing));
+        for (String index : indexes.keySet()) {
+          s.executeUpdate("DROP INDEX " + index);
+        }
+        conn.commit();
+      } catch (SQLException e) {
+        conn.rollback();
+        throw e;
+      }
+    }
+
+    long rows;
+    try {
+      rows = copyChunks(table, file);
+    } catch (SQLException | IOException e) {
+      emptyAfterFailure(table, file);
+      rebuildAfterFailure(indexes, e);
+      throw e;
+    } catch (InterruptedException | RuntimeException e) {
+      rebuildAfterFailure(indexes, e);
+      throw e;
+    }
+    rebuildIndexes(indexes);
+    try (Connection conn = DBConnUtils.openConnection();
+         Statement s = conn.createStatement()) {
+      s.executeUpdate("ANALYZE " + table);
+    }
+    report(table, rows, System.nanoTime() - start);
+    return rows;
+  }
+
+  /**
+   * Rebuilds the indexes after a failed load, so the table is left usable, without letting a
+   * rebuild failure hide the load's
+   */
+  private void rebuildAfterFailure(Map<String, String> indexes, Exception failure) {
+    try {
+      rebuildIndexes(indexes);
+    } catch (SQLException e) {
+      failure.addSuppressed(e);
+    } catch (InterruptedException e) {
+      failure.addSuppressed(e);
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Get the tables whose rows may refer to the table's rows, that exist
+   */
+  private static List<String> referencingTables(Connection conn, String table)
+    throws SQLException {
+    List<String> tables = new ArrayList<>();
+    try (PreparedStatement ps = conn.prepareStatement(REFERENCING_TABLES_SQL)) {
+      ps.setString(1, table);
+      try (ResultSet rs = ps.executeQuery()) {
+        while (rs.next()) {
+          tables.add(rs.getString("name"));
+        }
+      }
+    }
+    if (table.equalsIgnoreCase("FLIGHTS")) {
+      try (PreparedStatement ps = conn.prepareStatement(TABLE_EXISTS_SQL)) {
+        for (String other : FLIGHT_REFERENCING_TABLES) {
+          ps.setString(1, other);
+          try (ResultSet rs = ps.executeQuery()) {
+            rs.next();
+            if (rs.getBoolean("present") && !tables.contains(other)) {
+              tables.add(other);
+            }
+          }
+        }
+      }
+    }
+    return tables;
+  }
+
+  /**
+   * Removes the chunks of a failed load that did commit. Deletes rather than truncates, which
+   * would have to take tables with a foreign key to this one along.
+   */
+  private static void emptyAfterFailure(String table, Path file) {
+    try (Connection conn = DBConnUtils.openConnection();
+         Statement s = conn.createStatement()) {
+      s.executeUpdate("DELETE FROM " + table);
+      System.err.println("Failed to load " + file + "; " + table + " has been left empty");
+    } catch (SQLException | IOException e) {
+      System.err.println("Failed to load " + file + " and to empty " + table
+                         + " afterwards; it holds part of the file");
+      e.printStackTrace();
+    }
+  }
+
+  private static Map<String, String> secondaryIndexes(Connection conn, String table)
+    throws SQLException {
+    Map<String, String> indexes = new LinkedHashMap<>();
+    try (PreparedStatement ps = conn.prepareStatement(SECONDARY_INDEXES_SQL)) {
+      ps.setString(1, table);
+      try (ResultSet rs = ps.executeQuery()) {
+        while (rs.next()) {
+          indexes.put(rs.getString("name"), rs.getString("definition"));
+        }
+      }
+    }
+    return indexes;
+  }
+
+  /**
+   * Streams each chunk of the file into the table through COPY, in parallel. After a failure the
+   * chunks not yet started are skipped, and the rest are waited for, so none commits later.
+   */
+  private long copyChunks(String table, Path file) throws IOException, InterruptedException,
+                                                           SQLException {
+    String copySql = "COPY " + table + " FROM STDIN WITH (FORMAT csv)";
+    List<Future<Long>> chunks = new ArrayList<>();
+    AtomicBoolean failed = new AtomicBoolean();
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = channel.size();
+      long start = 0;
+      while (start < size) {
+        long end = lineEnd(channel, Math.min(start + chunkBytes, size));
+        MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        chunks.add(workers.submit(() -> failed.get() ? 0L : copyChunk(copySql, chunk)));
+        start = end;
+      }
+    }
+
+    long rows = 0;
+    Throwable failure = null;
+    for (Future<Long> chunk : chunks) {
+      try {
+        rows += chunk.get();
+      } catch (ExecutionException e) {
+        failed.set(true);
+        if (failure == null) {
+          failure = e.getCause();
+        }
+      }
+    }
+    if (failure instanceof SQLException) {
+      throw (SQLException) failure;
+    }
+    if (failure != null) {
+      throw new IOException("Failed to load " + file, failure);
+    }
+    return rows;
+  }
+
+  private static long copyChunk(String copySql, ByteBuffer chunk) throws SQLException, IOException {
+    try (Connection conn = DBConnUtils.openConnection()) {
+      CopyManager copy = conn.unwrap(PGConnection.class).getCopyAPI();
+      return copy.copyIn(copySql, new ByteBufferInputStream(chunk), 1 << 16);
+    }
+  }
+
+  /**
+   * Returns the offset just past the first line break at or after {@code offset}, or the end of
+   * the file
+   */
+  private static long lineEnd(FileChannel channel, long offset) throws IOException {
+    long size = channel.size();
+    ByteBuffer buf = ByteBuffer.allocate(8192);
+    long position = offset;
+    while (position < size) {
+      buf.clear();
+      int n = channel.read(buf, position);
+      for (int i = 0; i < n; i++) {
+        if (buf.get(i) == '\n') {
+          return position + i + 1;
+        }
+      }
+      position += n;
+    }
+    return size;
+  }
+
+  /**
+   * Recreates dropped indexes, in parallel
+   */
+  private void rebuildIndexes(Map<String, String> indexes) throws SQLException, InterruptedException {
+    List<Future<Void>> builds = new ArrayList<>();
+    for (String definition : indexes.values()) {
+      builds.add(workers.submit(() -> {
+        try (Connection conn = DBConnUtils.openConnection();
+             Statement s = conn.createStatement()) {
+          s.executeUpdate(definition);
+        }
+        return null;
+      }));
+    }
+    SQLException failure = null;
+    for (Map.Entry<String, String> index : indexes.entrySet()) {
+      try {
+        builds.remove(0).get();
+      } catch (ExecutionException e) {
+        System.err.println("Failed to rebuild index " + index.getKey() + ": " + index.getValue());
+        failure = new SQLException("Failed to rebuild index " + index.getKey(), e.getCause());
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  private static void report(String what, long rows, long nanos) {
+    double seconds = nanos / 1e9;
+    System.out.printf(Locale.ROOT, "Loaded %d rows into %s in %.2f s (%.0f rows/s)%n",
+                      rows, what, seconds, rows / Math.max(seconds, 1e-9));
+  }
+
+  /**
+   * Reads a (memory-mapped) buffer as a stream, without copying it first
+   */
+  private static class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buf;
+
+    ByteBufferInputStream(ByteBuffer buf) {
+      this.buf = buf;
+    }
+
+    @Override
+    public int read() {
+      return buf.hasRemaining() ? buf.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (!buf.hasRemaining()) {
+        return -1;
+      }
+      int n = Math.min(len, buf.remaining());
+      buf.get(b, off, n);
+      return n;
+    }
+
+    @Override
+    public int available() {
+      return buf.remaining();
+    }
+  }
+}
@@ -0,0 +1,98 @@
+package flightapp;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A TCP front end for the Flights application.
+ *
+ * Each client connection is a session with its own {@code Query} (and so its own logged-in user
+ * and search results), and speaks the same line-based command language as the REPL: one command
+ * per line, answered with the same text {@code FlightService.execute} returns. Sessions borrow a
+ * pooled database connection only while a command runs, so the number of clients is not limited
+ * by the number of database connections.
+ */
+public class FlightServer {
+  private final int port;
+  private final ExecutorService sessions;
+
+  public FlightServer(int port) {
+    this.port = port;
+    this.sessions = newSessionExecutor();
+  }
+
+  /**
+   * Uses a virtual thread per session when the JVM supports them (Java 21+), and a cached pool of
+   * platform threads otherwise.
+   */
+  private static ExecutorService newSessionExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "flightapp-session");
+        t.setDaemon(true);
+        return t;
+      });
+    }
+  }
+
+  /**
+   * Accepts clients until the process is stopped
+   */
+  public void serve() throws IOException {
+    try (ServerSocket server = new ServerSocket(port)) {
+      System.out.println("Flights server listening on port " + server.getLocalPort());
+      while (true) {
+        Socket client = server.accept();
+        sessions.execute(() -> runSession(client));
+      }
+    } finally {
+      sessions.shutdownNow();
+    }
+  }
+
+  /**
+   * Runs one client's session until it quits or disconnects
+   */
+  private void runSession(Socket client) {
+    Query q = null;
+    try (Socket s = client;
+         BufferedReader in = new BufferedReader(
+             new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+         Writer out = new BufferedWriter(
+             new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
+      q = new Query(true);
+      String command;
+      while ((command = in.readLine()) != null) {
+        String response;
+        try {
+          response = FlightService.execute(q, command);
+        } catch (RuntimeException e) {
+          // a bad command must not take the whole session down
+          response = "Error: " + e.getMessage();
+        }
+        out.write(response.endsWith("\n") ? response : response + "\n");
+        out.flush();
+        if (response.equals("Goodbye\n")) {
+          break;
+        }
+      }
+    } catch (IOException | SQLException e) {
+      System.err.println("Session ended: " + e);
+    } finally {
+      if (q != null) {
+        try {
+          q.closeConnection();
+        } catch (SQLException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+}
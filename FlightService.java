@@ -44,19 +44,24 @@ public class FlightService {
 
     // search
     else if (tokens[0].equals("search")) {
-      if (tokens.length == 6) {
+      if (tokens.length == 6 || tokens.length == 7) {
         String originCity = tokens[1];
         String destinationCity = tokens[2];
         boolean direct = tokens[3].equals("1");
         try {
           int day = Integer.valueOf(tokens[4]);
           int count = Integer.valueOf(tokens[5]);
-          response = q.search(originCity, destinationCity, direct, day, count);
+          if (tokens.length == 7 && !direct) {
+            int maxStops = Integer.valueOf(tokens[6]);
+            response = q.search(originCity, destinationCity, day, count, maxStops);
+          } else {
+            response = q.search(originCity, destinationCity, direct, day, count);
+          }
         } catch (NumberFormatException e) {
           response = "Failed to parse integer";
         }
       } else {
-        response = "Error: Please provide all search parameters <origin_city> <destination_city> <direct> <date> <nb itineraries>";
+        response = "Error: Please provide all search parameters <origin_city> <destination_city> <direct> <date> <nb itineraries> [max stops]";
       }
     }
 
@@ -85,6 +90,15 @@ public class FlightService {
       }
     }
 
+    // stats
+    else if (tokens[0].equals("stats")) {
+      response = CommandMetrics.report();
+      FlightChangeFeed changes = FlightChangeFeed.getInstance();
+      if (changes != null) {
+        response += changes.report();
+      }
+    }
+
     // quit
     else if (tokens[0].equals("quit")) {
       response = "Goodbye\n";
@@ -100,12 +114,28 @@ public class FlightService {
 
   /**
    * Establishes an application-to-database connection and runs the Flights
-   * application REPL
+   * application REPL, or with "server [port]" serves many concurrent sessions over TCP, or with
+   * "load ..." bulk loads flights-data files
    * 
    * @param args
    * @throws IOException
    */
   public static void main(String[] args) throws IOException, SQLException {
+    if (args.length > 0 && args[0].equals("load")) {
+      try {
+        FlightDataLoader.main(Arrays.copyOfRange(args, 1, args.length));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return;
+    }
+    if (args.length > 0 && args[0].equals("server")) {
+      int port = Integer.parseInt(args.length > 1 ? args[1]
+                                  : DBConnUtils.getProperty("flightapp.server.port", "8080"));
+      new FlightServer(port).serve();
+      return;
+    }
+
     QueryAbstract q = new Query();
     menu(q);
     q.closeConnection();
@@ -125,10 +155,11 @@ public class FlightService {
       System.out.println(" *** Please enter one of the following commands *** ");
       System.out.println("> create <username> <password> <initial amount>");
       System.out.println("> login <username> <password>");
-      System.out.println("> search <origin city> <destination city> <direct> <day of the month> <num itineraries>");
+      System.out.println("> search <origin city> <destination city> <direct> <day of the month> <num itineraries> [max stops]");
       System.out.println("> book <itinerary id>");
       System.out.println("> pay <reservation id>");
       System.out.println("> reservations");
+      System.out.println("> stats");
       System.out.println("> quit");
 
       // read an input command from the REPL
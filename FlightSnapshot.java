@@ -0,0 +1,258 @@
+package flightapp;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A binary file holding a FlightStore and the RouteIndex built on it, so a restart maps the file
+ * instead of scanning the Flights table.
+ *
+ * The file starts with a fixed-size header: a magic number, the format version, the byte order,
+ * the number of store rows, the Flights table's row count and max fid when the snapshot was
+ * taken, and the length and CRC32 of the body. The body holds the store's int columns, each
+ * starting at a multiple of 4 so it can be used in place, then the dictionaries, then the route
+ * lists of each (day, origin, destination).
+ *
+ * A snapshot is only used while the version, byte order and checksum match and the Flights table
+ * still has the same row count and max fid. Otherwise the store is loaded from the database and
+ * the snapshot rewritten. Changing flights in place is not detected from the counts; the
+ * FlightChangeFeed deletes or rewrites the snapshot when flights change, otherwise delete it
+ * after doing so.
+ *
+ * Enabled by setting flightapp.snapshot.path.
+ */
+public class FlightSnapshot {
+  private static final String FLIGHTS_SUMMARY_SQL = "SELECT count(*) AS n, coalesce(max(fid), 0) AS max_fid "
+    + "FROM Flights";
+
+  private static final int MAGIC = 0x46534e50;  // FSNP
+  private static final int VERSION = 1;
+  private static final int HEADER_BYTES = 64;
+
+  private FlightSnapshot() {
+  }
+
+  /**
+   * Maps the snapshot if it matches the Flights table, else loads the table and writes a new
+   * snapshot
+   */
+  public static RouteIndex loadOrBuild(Path path, Connection conn) throws SQLException {
+    long flightCount;
+    int maxFid;
+    try (PreparedStatement ps = conn.prepareStatement(FLIGHTS_SUMMARY_SQL);
+         ResultSet rs = ps.executeQuery()) {
+      rs.next();
+      flightCount = rs.getLong("n");
+      maxFid = rs.getInt("max_fid");
+    }
+
+    try {
+      RouteIndex index = read(path, flightCount, maxFid);
+      if (index != null) {
+        return index;
+      }
+    } catch (IOException | RuntimeException e) {
+      System.err.println("Ignoring unreadable flight snapshot " + path + ": " + e);
+    }
+
+    RouteIndex index = RouteIndex.build(FlightStore.load(conn));
+    try {
+      write(path, index);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    return index;
+  }
+
+  /**
+   * Writes a snapshot, replacing any previous one only once it is complete
+   */
+  public static void write(Path path, RouteIndex index) throws IOException {
+    FlightStore store = index.getStore();
+    int rows = store.size();
+    Path temp = Paths.get(path + ".tmp");
+    CRC32 crc = new CRC32();
+    try (OutputStream file = Files.newOutputStream(temp)) {
+      file.write(new byte[HEADER_BYTES]);
+      CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(file, 1 << 16), crc);
+      DataOutputStream out = new DataOutputStream(checked);
+
+      byte[] chunk = new byte[1 << 16];
+      for (int c = 0; c < FlightStore.COLUMNS; c++) {
+        ByteBuffer column = store.column(c).duplicate();
+        column.position(0).limit(rows * 4);
+        while (column.hasRemaining()) {
+          int n = Math.min(chunk.length, column.remaining());
+          column.get(chunk, 0, n);
+          out.write(chunk, 0, n);
+        }
+      }
+      writeDictionary(out, store.cities());
+      writeDictionary(out, store.carriers());
+      writeDictionary(out, store.flightNums());
+
+      Map<Integer, Map<Integer, Map<Integer, int[]>>> days = index.getDays();
+      out.writeInt(days.size());
+      for (Map.Entry<Integer, Map<Integer, Map<Integer, int[]>>> day : days.entrySet()) {
+        out.writeInt(day.getKey());
+        out.writeInt(day.getValue().size());
+        for (Map.Entry<Integer, Map<Integer, int[]>> origin : day.getValue().entrySet()) {
+          out.writeInt(origin.getKey());
+          out.writeInt(origin.getValue().size());
+          for (Map.Entry<Integer, int[]> dest : origin.getValue().entrySet()) {
+            out.writeInt(dest.getKey());
+            out.writeInt(dest.getValue().length);
+            for (int row : dest.getValue()) {
+              out.writeInt(row);
+            }
+          }
+        }
+      }
+      out.flush();
+    }
+    long bodyBytes = Files.size(temp) - HEADER_BYTES;
+
+    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    header.putInt(MAGIC).putInt(VERSION)
+      .putInt(ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN ? 1 : 2)
+      .putInt(rows).putLong(rows).putInt(store.maxFid()).putInt(0)
+      .putLong(bodyBytes).putLong(crc.getValue());
+    try (RandomAccessFile file = new RandomAccessFile(temp.toFile(), "rw")) {
+      file.write(header.array());
+      file.getFD().sync();
+    }
+    Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Maps a snapshot. Its columns are used in place, in a private mapping, so later changes to
+   * the store are not written back to the file.
+   *
+   * @return null if there is no snapshot, or it doesn't match this format or the Flights table
+   */
+  public static RouteIndex read(Path path, long flightCount, int maxFid) throws IOException {
+    if (!Files.exists(path)) {
+      return null;
+    }
+    MappedByteBuffer file;
+    // a private mapping needs a writable channel, though nothing is written to the file
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ,
+                                                StandardOpenOption.WRITE)) {
+      if (channel.size() < HEADER_BYTES) {
+        return null;
+      }
+      file = channel.map(FileChannel.MapMode.PRIVATE, 0, channel.size());
+    }
+
+    ByteBuffer header = file.duplicate();
+    int byteOrder = ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN ? 1 : 2;
+    if (header.getInt() != MAGIC || header.getInt() != VERSION || header.getInt() != byteOrder) {
+      return null;
+    }
+    int rows = header.getInt();
+    long snapshotCount = header.getLong();
+    int snapshotMaxFid = header.getInt();
+    header.getInt();
+    long bodyBytes = header.getLong();
+    long checksum = header.getLong();
+    if (snapshotCount != flightCount || snapshotMaxFid != maxFid
+        || bodyBytes != file.capacity() - HEADER_BYTES) {
+      return null;
+    }
+    ByteBuffer body = file.duplicate();
+    body.position(HEADER_BYTES);
+    CRC32 crc = new CRC32();
+    crc.update(body);
+    if (crc.getValue() != checksum) {
+      return null;
+    }
+
+    ByteBuffer[] columns = new ByteBuffer[FlightStore.COLUMNS];
+    int offset = HEADER_BYTES;
+    for (int c = 0; c < FlightStore.COLUMNS; c++) {
+      ByteBuffer column = file.duplicate();
+      column.position(offset).limit(offset + rows * 4);
+      columns[c] = column.slice().order(ByteOrder.nativeOrder());
+      offset += rows * 4;
+    }
+    ByteBuffer in = file.duplicate().order(ByteOrder.BIG_ENDIAN);
+    in.position(offset);
+    FlightStore.Dictionary cities = readDictionary(in);
+    FlightStore.Dictionary carriers = readDictionary(in);
+    FlightStore.Dictionary flightNums = readDictionary(in);
+    FlightStore store = new FlightStore(rows, columns, cities, carriers, flightNums);
+
+    Map<Integer, Map<Integer, Map<Integer, int[]>>> days = new HashMap<>();
+    int dayCount = in.getInt();
+    for (int d = 0; d < dayCount; d++) {
+      int day = in.getInt();
+      Map<Integer, Map<Integer, int[]>> origins = new HashMap<>();
+      int originCount = in.getInt();
+      for (int o = 0; o < originCount; o++) {
+        int origin = in.getInt();
+        Map<Integer, int[]> dests = new HashMap<>();
+        int destCount = in.getInt();
+        for (int t = 0; t < destCount; t++) {
+          int dest = in.getInt();
+          int[] routeRows = new int[in.getInt()];
+          in.asIntBuffer().get(routeRows);
+          in.position(in.position() + routeRows.length * 4);
+          dests.put(dest, routeRows);
+        }
+        origins.put(origin, dests);
+      }
+      days.put(day, origins);
+    }
+    return new RouteIndex(store, days);
+  }
+
+  private static void writeDictionary(DataOutputStream out, FlightStore.Dictionary dictionary)
+    throws IOException {
+    out.writeInt(dictionary.size());
+    for (int code = 0; code < dictionary.size(); code++) {
+      String value = dictionary.value(code);
+      byte[] bytes = value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(bytes == null ? -1 : bytes.length);
+      if (bytes != null) {
+        out.write(bytes);
+      }
+    }
+  }
+
+  private static FlightStore.Dictionary readDictionary(ByteBuffer in) {
+    FlightStore.Dictionary dictionary = new FlightStore.Dictionary();
+    int size = in.getInt();
+    for (int code = 0; code < size; code++) {
+      int length = in.getInt();
+      String value = null;
+      if (length >= 0) {
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        value = new String(bytes, StandardCharsets.UTF_8);
+      }
+      dictionary.encode(value);
+    }
+    return dictionary;
+  }
+}
@@ -0,0 +1,299 @@
+package flightapp;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A column-oriented, off-heap copy of the Flights table.
+ *
+ * Each flight is a row number. Numeric columns are stored as ints in direct buffers, outside the
+ * garbage-collected heap. Cities, carriers and flight numbers are dictionary-encoded: a column
+ * holds small integer codes, and each distinct string is kept once. Query.Flight objects are
+ * only built, with {@link #flight(int)}, for the rows that end up in a response.
+ *
+ * Price, capacity and canceled can be changed in place, by the FlightChangeFeed; every other
+ * column is fixed once the store is built.
+ */
+public class FlightStore {
+  private static final String LOAD_FLIGHTS_SQL = "SELECT fid, day_of_month, carrier_id, flight_num, "
+    + "origin_city, dest_city, actual_time, capacity, price, canceled FROM Flights";
+  private static final int LOAD_FETCH_SIZE = 10000;
+
+  private static final int FID = 0;
+  private static final int DAY = 1;
+  private static final int TIME = 2;
+  private static final int CAPACITY = 3;
+  private static final int PRICE = 4;
+  private static final int ORIGIN = 5;
+  private static final int DEST = 6;
+  private static final int CARRIER = 7;
+  private static final int FLIGHT_NUM = 8;
+  private static final int CANCELED = 9;
+  static final int COLUMNS = 10;
+
+  private final int rows;
+  private final ByteBuffer[] columns;
+  private final Dictionary cities;
+  private final Dictionary carriers;
+  private final Dictionary flightNums;
+  // fid -> row, built on first use
+  private volatile int[] rowsByFid;
+
+  FlightStore(int rows, ByteBuffer[] columns, Dictionary cities, Dictionary carriers,
+              Dictionary flightNums) {
+    this.rows = rows;
+    this.columns = columns;
+    this.cities = cities;
+    this.carriers = carriers;
+    this.flightNums = flightNums;
+  }
+
+  /**
+   * Reads the whole Flights table, canceled flights included, LOAD_FETCH_SIZE rows at a time
+   */
+  public static FlightStore load(Connection conn) throws SQLException {
+    Builder builder = new Builder();
+    boolean autoCommit = conn.getAutoCommit();
+    // without a transaction the driver reads the whole result into memory first
+    conn.setAutoCommit(false);
+    try (PreparedStatement ps = conn.prepareStatement(LOAD_FLIGHTS_SQL)) {
+      ps.setFetchSize(LOAD_FETCH_SIZE);
+      try (ResultSet rs = ps.executeQuery()) {
+        while (rs.next()) {
+          builder.add(rs.getInt("fid"), rs.getInt("day_of_month"), rs.getString("carrier_id"),
+                      rs.getString("flight_num"), rs.getString("origin_city"),
+                      rs.getString("dest_city"), rs.getInt("actual_time"), rs.getInt("capacity"),
+                      rs.getInt("price"), rs.getInt("canceled") != 0);
+        }
+      }
+    } finally {
+      if (autoCommit) {
+        conn.rollback();
+        conn.setAutoCommit(true);
+      }
+    }
+    return builder.build();
+  }
+
+  public int size() {
+    return rows;
+  }
+
+  public int fid(int row) {
+    return get(FID, row);
+  }
+
+  public int day(int row) {
+    return get(DAY, row);
+  }
+
+  public int time(int row) {
+    return get(TIME, row);
+  }
+
+  public int capacity(int row) {
+    return get(CAPACITY, row);
+  }
+
+  public int price(int row) {
+    return get(PRICE, row);
+  }
+
+  /**
+   * Get the dictionary code of the flight's origin city
+   */
+  public int origin(int row) {
+    return get(ORIGIN, row);
+  }
+
+  /**
+   * Get the dictionary code of the flight's destination city
+   */
+  public int dest(int row) {
+    return get(DEST, row);
+  }
+
+  public boolean canceled(int row) {
+    return get(CANCELED, row) != 0;
+  }
+
+  public void setCapacity(int row, int capacity) {
+    columns[CAPACITY].putInt(row << 2, capacity);
+  }
+
+  public void setPrice(int row, int price) {
+    columns[PRICE].putInt(row << 2, price);
+  }
+
+  public void setCanceled(int row, boolean canceled) {
+    columns[CANCELED].putInt(row << 2, canceled ? 1 : 0);
+  }
+
+  /**
+   * Get the row of a flight, or -1 if the store doesn't have it
+   */
+  public int row(int fid) {
+    int[] byFid = rowsByFid;
+    if (byFid == null) {
+      byFid = new int[maxFid() + 1];
+      Arrays.fill(byFid, -1);
+      for (int row = 0; row < rows; row++) {
+        byFid[fid(row)] = row;
+      }
+      rowsByFid = byFid;
+    }
+    return fid >= 0 && fid < byFid.length ? byFid[fid] : -1;
+  }
+
+  /**
+   * Get whether a row still has the given schedule: everything but price, capacity and canceled
+   */
+  public boolean sameSchedule(int row, int day, String carrier, String flightNum, String origin,
+                              String dest, int time) {
+    return day(row) == day && time(row) == time && origin(row) == cities.code(origin)
+      && dest(row) == cities.code(dest) && get(CARRIER, row) == carriers.code(carrier)
+      && get(FLIGHT_NUM, row) == flightNums.code(flightNum);
+  }
+
+  /**
+   * Get the dictionary code of a city, or -1 if no flight touches it
+   */
+  public int cityCode(String city) {
+    return cities.code(city);
+  }
+
+  public String city(int code) {
+    return cities.value(code);
+  }
+
+  /**
+   * Builds the flight object for a row
+   */
+  public Query.Flight flight(int row) {
+    return new Query.Flight(fid(row), day(row), carriers.value(get(CARRIER, row)),
+                            flightNums.value(get(FLIGHT_NUM, row)), cities.value(origin(row)),
+                            cities.value(dest(row)), time(row), capacity(row), price(row));
+  }
+
+  private int get(int column, int row) {
+    return columns[column].getInt(row << 2);
+  }
+
+  /**
+   * Get the largest fid, or 0 if the store is empty
+   */
+  public int maxFid() {
+    int max = 0;
+    for (int row = 0; row < rows; row++) {
+      max = Math.max(max, fid(row));
+    }
+    return max;
+  }
+
+  ByteBuffer column(int column) {
+    return columns[column];
+  }
+
+  Dictionary cities() {
+    return cities;
+  }
+
+  Dictionary carriers() {
+    return carriers;
+  }
+
+  Dictionary flightNums() {
+    return flightNums;
+  }
+
+  /**
+   * Distinct strings of a column, each with an integer code
+   */
+  static class Dictionary {
+    private final List<String> values = new ArrayList<>();
+    private final Map<String, Integer> codes = new HashMap<>();
+
+    int encode(String value) {
+      Integer code = codes.get(value);
+      if (code == null) {
+        code = values.size();
+        values.add(value);
+        codes.put(value, code);
+      }
+      return code;
+    }
+
+    int code(String value) {
+      Integer code = codes.get(value);
+      return code == null ? -1 : code;
+    }
+
+    String value(int code) {
+      return values.get(code);
+    }
+
+    int size() {
+      return values.size();
+    }
+  }
+
+  /**
+   * Appends rows to growing off-heap columns
+   */
+  static class Builder {
+    private final ByteBuffer[] columns = new ByteBuffer[COLUMNS];
+    private final Dictionary cities = new Dictionary();
+    private final Dictionary carriers = new Dictionary();
+    private final Dictionary flightNums = new Dictionary();
+    private int rows;
+
+    Builder() {
+      for (int c = 0; c < COLUMNS; c++) {
+        columns[c] = allocate(1024);
+      }
+    }
+
+    void add(int fid, int day, String carrier, String flightNum, String origin, String dest,
+             int time, int capacity, int price, boolean canceled) {
+      if ((rows + 1) * 4 > columns[0].capacity()) {
+        for (int c = 0; c < COLUMNS; c++) {
+          ByteBuffer grown = allocate(columns[c].capacity() * 2 / 4);
+          ByteBuffer old = columns[c].duplicate();
+          old.clear();
+          grown.put(old);
+          grown.clear();
+          columns[c] = grown;
+        }
+      }
+      int at = rows << 2;
+      columns[FID].putInt(at, fid);
+      columns[DAY].putInt(at, day);
+      columns[TIME].putInt(at, time);
+      columns[CAPACITY].putInt(at, capacity);
+      columns[PRICE].putInt(at, price);
+      columns[ORIGIN].putInt(at, cities.encode(origin));
+      columns[DEST].putInt(at, cities.encode(dest));
+      columns[CARRIER].putInt(at, carriers.encode(carrier));
+      columns[FLIGHT_NUM].putInt(at, flightNums.encode(flightNum));
+      columns[CANCELED].putInt(at, canceled ? 1 : 0);
+      rows++;
+    }
+
+    FlightStore build() {
+      return new FlightStore(rows, columns, cities, carriers, flightNums);
+    }
+
+    private static ByteBuffer allocate(int ints) {
+      return ByteBuffer.allocateDirect(ints * 4).order(ByteOrder.nativeOrder());
+    }
+  }
+}
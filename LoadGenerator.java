@@ -0,0 +1,522 @@
+package flightapp;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Drives many concurrent sessions through {@code FlightService.execute}, to reproduce contention
+ * offline, then checks that the bookings left in the database are consistent.
+ *
+ * Like FlightBenchmarks, it runs against the database in dbconn.properties, which must be a
+ * scratch database: users and reservations are cleared first.
+ *
+ * The workload is either a trace or a generated mix. A trace is a JSON-lines file with one
+ * command per line, eg
+ *
+ *   {"session": "s1", "think_ms": 250, "command": "search \"Seattle WA\" \"Boston MA\" 0 3 5"}
+ *
+ * Each session's commands run in file order on their own Query, after waiting think_ms (scaled
+ * by --speed); up to --concurrency sessions run at once. A mix runs --concurrency sessions, each
+ * creating and logging in its own user, then issuing --ops commands (or running for --duration
+ * seconds) picked with the weights of --mix from searches of the busiest routes, bookings of
+ * their results and payments of the session's reservations.
+ *
+ * Usage: LoadGenerator [--trace file] [--concurrency n] [--mix search=60,book=25,pay=10,login=5]
+ *                      [--ops n] [--duration s] [--think-ms n] [--speed x] [--balance n]
+ *                      [--out file]
+ */
+public class LoadGenerator {
+  // Flights with more bookings than seats
+  private static final String OVERBOOKED_SQL = "SELECT b.fid, count(*) AS booked, f.capacity "
+    + "FROM (SELECT flightID1 AS fid FROM reservations_ishaj83 "
+    + "UNION ALL SELECT flightID2 FROM reservations_ishaj83 WHERE flightID2 IS NOT NULL "
+    + "UNION ALL SELECT fid FROM reservation_legs_ishaj83) b "
+    + "JOIN Flights f ON f.fid = b.fid GROUP BY b.fid, f.capacity HAVING count(*) > f.capacity";
+
+  private static final String NEGATIVE_BALANCE_SQL = "SELECT username, balance FROM users_ishaj83 "
+    + "WHERE balance < 0";
+
+  private static final String SAME_DAY_SQL = "SELECT username, day_of_month, count(*) "
+    + "FROM reservations_ishaj83 GROUP BY username, day_of_month HAVING count(*) > 1";
+
+  // Seat counters that disagree with the reservations they count
+  private static final String SEAT_COUNT_SQL = "SELECT s.fid, s.booked, coalesce(b.n, 0) AS actual "
+    + "FROM flight_seats_ishaj83 s LEFT JOIN (SELECT fid, count(*) AS n FROM ("
+    + "SELECT flightID1 AS fid FROM reservations_ishaj83 "
+    + "UNION ALL SELECT flightID2 FROM reservations_ishaj83 WHERE flightID2 IS NOT NULL "
+    + "UNION ALL SELECT fid FROM reservation_legs_ishaj83) l GROUP BY fid) b ON b.fid = s.fid "
+    + "WHERE s.booked <> coalesce(b.n, 0)";
+
+  // Reservation IDs must run from 1 without gaps
+  private static final String RESERVATION_IDS_SQL = "SELECT count(*) AS n, coalesce(max(reservationID), 0) "
+    + "AS max_id FROM reservations_ishaj83";
+
+  private static final Pattern JSON_FIELD =
+    Pattern.compile("\"(\\w+)\"\\s*:\\s*(\"(?:[^\"\\\\]|\\\\.)*\"|-?[0-9.]+)");
+
+  private static final Pattern BALANCE = Pattern.compile("remaining balance: (-?\\d+)");
+
+  private final int concurrency;
+  private final double speed;
+  private final Map<String, CommandStats> stats = new ConcurrentSkipListMap<>();
+  private final AtomicLong negativeBalanceResponses = new AtomicLong();
+
+  LoadGenerator(int concurrency, double speed) {
+    this.concurrency = concurrency;
+    this.speed = speed;
+  }
+
+  public static void main(String[] args) throws Exception {
+    String trace = null;
+    String out = null;
+    String mix = "search=60,book=25,pay=10,login=5";
+    int concurrency = 16;
+    int ops = 200;
+    long durationSeconds = 0;
+    long thinkMillis = 0;
+    double speed = 1.0;
+    int balance = 5000;
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      switch (args[i]) {
+        case "--trace": trace = args[i + 1]; break;
+        case "--out": out = args[i + 1]; break;
+        case "--mix": mix = args[i + 1]; break;
+        case "--concurrency": concurrency = Integer.parseInt(args[i + 1]); break;
+        case "--ops": ops = Integer.parseInt(args[i + 1]); break;
+        case "--duration": durationSeconds = Long.parseLong(args[i + 1]); break;
+        case "--think-ms": thinkMillis = Long.parseLong(args[i + 1]); break;
+        case "--speed": speed = Double.parseDouble(args[i + 1]); break;
+        case "--balance": balance = Integer.parseInt(args[i + 1]); break;
+        default: throw new IllegalArgumentException("Unknown option " + args[i]);
+      }
+    }
+
+    LoadGenerator load = new LoadGenerator(concurrency, speed);
+    new Query(true).clearTablesWrap();
+    Map<String, long[]> attemptsBefore = snapshot(TransactionRunner.getInstance().getStats());
+    long start = System.nanoTime();
+    if (trace != null) {
+      load.replay(readTrace(trace));
+    } else {
+      load.runMix(parseMix(mix), ops, durationSeconds * 1_000_000_000L, thinkMillis, balance);
+    }
+    long elapsed = System.nanoTime() - start;
+
+    List<String> violations = load.checkInvariants();
+    String report = load.report(elapsed, attemptsBefore, violations);
+    System.out.print(report);
+    if (out != null) {
+      try (Writer w = Files.newBufferedWriter(Paths.get(out), StandardCharsets.UTF_8)) {
+        w.write(load.toJson(elapsed, attemptsBefore, violations));
+      }
+      System.out.println("Wrote results to " + out);
+    }
+    if (!violations.isEmpty()) {
+      System.exit(1);
+    }
+  }
+
+  /**
+   * One command of a trace
+   */
+  static class TraceEntry {
+    final String session;
+    final long thinkMillis;
+    final String command;
+
+    TraceEntry(String session, long thinkMillis, String command) {
+      this.session = session;
+      this.thinkMillis = thinkMillis;
+      this.command = command;
+    }
+  }
+
+  /**
+   * Reads a JSON-lines trace, skipping blank lines
+   */
+  static List<TraceEntry> readTrace(String path) throws IOException {
+    List<TraceEntry> entries = new ArrayList<>();
+    int lineNumber = 0;
+    for (String line : Files.readAllLines(Paths.get(path), StandardCharsets.UTF_8)) {
+      lineNumber++;
+      if (line.trim().isEmpty()) {
+        continue;
+      }
+      Map<String, String> fields = parseJsonLine(line);
+      String command = fields.get("command");
+      if (command == null) {
+        throw new IllegalArgumentException(path + ":" + lineNumber + ": missing \"command\"");
+      }
+      entries.add(new TraceEntry(fields.getOrDefault("session", "0"),
+                                 (long) Double.parseDouble(fields.getOrDefault("think_ms", "0")),
+                                 command));
+    }
+    return entries;
+  }
+
+  /**
+   * Reads the string and number fields of a flat JSON object
+   */
+  static Map<String, String> parseJsonLine(String line) {
+    Map<String, String> fields = new HashMap<>();
+    Matcher m = JSON_FIELD.matcher(line);
+    while (m.find()) {
+      String value = m.group(2);
+      fields.put(m.group(1), value.startsWith("\"") ? unescape(value.substring(1, value.length() - 1))
+                                                    : value);
+    }
+    return fields;
+  }
+
+  private static String unescape(String s) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c != '\\' || i + 1 >= s.length()) {
+        sb.append(c);
+        continue;
+      }
+      char e = s.charAt(++i);
+      switch (e) {
+        case 'n': sb.append('\n'); break;
+        case 't': sb.append('\t'); break;
+        case 'r': sb.append('\r'); break;
+        case 'u':
+          sb.append((char) Integer.parseInt(s.substring(i + 1, i + 5), 16));
+          i += 4;
+          break;
+        default: sb.append(e); break;
+      }
+    }
+    return sb.toString();
+  }
+
+  static Map<String, Integer> parseMix(String mix) {
+    Map<String, Integer> weights = new LinkedHashMap<>();
+    for (String part : mix.split(",")) {
+      String[] kv = part.trim().split("=");
+      weights.put(kv[0], Integer.parseInt(kv[1]));
+    }
+    return weights;
+  }
+
+  /**
+   * Replays each session of a trace on its own Query
+   */
+  void replay(List<TraceEntry> entries) throws Exception {
+    Map<String, List<TraceEntry>> sessions = new LinkedHashMap<>();
+    for (TraceEntry e : entries) {
+      sessions.computeIfAbsent(e.session, k -> new ArrayList<>()).add(e);
+    }
+    List<Callable<Void>> work = new ArrayList<>();
+    for (List<TraceEntry> session : sessions.values()) {
+      work.add(() -> {
+        Query q = new Query(true);
+        try {
+          for (TraceEntry e : session) {
+            think(e.thinkMillis);
+            execute(q, e.command);
+          }
+        } finally {
+          q.closeConnection();
+        }
+        return null;
+      });
+    }
+    runAll(work);
+  }
+
+  /**
+   * Runs a generated mix of commands: each session has its own user and books the itineraries
+   * its own searches returned
+   */
+  void runMix(Map<String, Integer> weights, int ops, long durationNanos, long thinkMillis,
+              int balance) throws Exception {
+    List<String[]> routes = new ArrayList<>();
+    try (Connection conn = DBConnUtils.openConnection();
+         Statement s = conn.createStatement();
+         ResultSet rs = s.executeQuery(FlightBenchmarks.ROUTES_SQL)) {
+      while (rs.next()) {
+        routes.add(new String[] {rs.getString(1), rs.getString(2), rs.getString(3)});
+      }
+    }
+    if (routes.isEmpty()) {
+      throw new IllegalStateException("Flights table has no searchable routes");
+    }
+    int totalWeight = weights.values().stream().mapToInt(Integer::intValue).sum();
+    long deadline = System.nanoTime() + durationNanos;
+
+    List<Callable<Void>> work = new ArrayList<>();
+    for (int n = 0; n < concurrency; n++) {
+      String user = "load_user" + n;
+      work.add(() -> {
+        Random random = ThreadLocalRandom.current();
+        Query q = new Query(true);
+        execute(q, "create " + user + " password " + balance);
+        execute(q, "login " + user + " password");
+        int itineraries = 0;
+        Deque<Integer> unpaid = new ArrayDeque<>();
+        try {
+          for (int i = 0; durationNanos > 0 ? System.nanoTime() < deadline : i < ops; i++) {
+            think(thinkMillis > 0 ? (long) (-Math.log(1 - random.nextDouble()) * thinkMillis) : 0);
+            String command = pick(weights, totalWeight, random);
+            if (command.equals("book") && itineraries == 0) {
+              command = "search";
+            } else if (command.equals("pay") && unpaid.isEmpty()) {
+              command = itineraries > 0 ? "book" : "search";
+            }
+
+            switch (command) {
+              case "search": {
+                String[] r = routes.get(random.nextInt(routes.size()));
+                String response = execute(q, "search \"" + r[0] + "\" \"" + r[1] + "\" "
+                                             + random.nextInt(2) + " " + r[2] + " 5");
+                itineraries = countItineraries(response);
+                break;
+              }
+              case "book": {
+                String response = execute(q, "book " + random.nextInt(itineraries));
+                if (response.startsWith("Booked")) {
+                  unpaid.add(Integer.parseInt(response.substring(response.lastIndexOf(' ') + 1).trim()));
+                }
+                break;
+              }
+              case "pay":
+                execute(q, "pay " + unpaid.poll());
+                break;
+              case "login":
+                // a fresh session, as after a reconnect; the old one's search is lost
+                q.closeConnection();
+                q = new Query(true);
+                execute(q, "login " + user + " password");
+                itineraries = 0;
+                break;
+              default:
+                execute(q, command);
+                break;
+            }
+          }
+        } finally {
+          q.closeConnection();
+        }
+        return null;
+      });
+    }
+    runAll(work);
+  }
+
+  private static String pick(Map<String, Integer> weights, int totalWeight, Random random) {
+    int r = random.nextInt(totalWeight);
+    for (Map.Entry<String, Integer> w : weights.entrySet()) {
+      r -= w.getValue();
+      if (r < 0) {
+        return w.getKey();
+      }
+    }
+    throw new IllegalStateException("Empty mix");
+  }
+
+  private static int countItineraries(String response) {
+    int count = 0;
+    for (String line : response.split("\n")) {
+      if (line.startsWith("Itinerary ")) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private void think(long millis) throws InterruptedException {
+    long scaled = (long) (millis / speed);
+    if (scaled > 0) {
+      Thread.sleep(scaled);
+    }
+  }
+
+  private void runAll(List<Callable<Void>> work) throws Exception {
+    ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+    try {
+      for (Future<Void> f : pool.invokeAll(work)) {
+        f.get();
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * Runs and times one command, and records whether it succeeded
+   */
+  private String execute(Query q, String command) {
+    String name = command.trim().split("\\s+", 2)[0];
+    CommandStats s = stats.computeIfAbsent(name, k -> new CommandStats());
+    long begin = System.nanoTime();
+    String response;
+    try {
+      response = FlightService.execute(q, command);
+    } catch (RuntimeException e) {
+      response = "Error: " + e.getMessage();
+    }
+    s.latency.record(System.nanoTime() - begin);
+    if (succeeded(name, response)) {
+      s.succeeded.incrementAndGet();
+    }
+    Matcher m = BALANCE.matcher(response);
+    if (m.find() && Long.parseLong(m.group(1)) < 0) {
+      negativeBalanceResponses.incrementAndGet();
+    }
+    return response;
+  }
+
+  private static boolean succeeded(String command, String response) {
+    switch (command) {
+      case "create": return response.startsWith("Created user");
+      case "login": return response.startsWith("Logged in");
+      case "search": return response.startsWith("Itinerary") || response.startsWith("No flights");
+      case "book": return response.startsWith("Booked");
+      case "pay": return response.startsWith("Paid");
+      case "reservations": return response.startsWith("Reservation") || response.startsWith("No reservations");
+      default: return !response.startsWith("Error");
+    }
+  }
+
+  /**
+   * Checks the bookings in the database
+   *
+   * @return a description of each violation found
+   */
+  List<String> checkInvariants() throws SQLException, IOException {
+    List<String> violations = new ArrayList<>();
+    try (Connection conn = DBConnUtils.openConnection();
+         Statement s = conn.createStatement()) {
+      try (ResultSet rs = s.executeQuery(OVERBOOKED_SQL)) {
+        while (rs.next()) {
+          violations.add("flight " + rs.getInt("fid") + " has " + rs.getInt("booked")
+                         + " bookings but capacity " + rs.getInt("capacity"));
+        }
+      }
+      try (ResultSet rs = s.executeQuery(NEGATIVE_BALANCE_SQL)) {
+        while (rs.next()) {
+          violations.add("user " + rs.getString("username") + " has balance " + rs.getInt("balance"));
+        }
+      }
+      try (ResultSet rs = s.executeQuery(SAME_DAY_SQL)) {
+        while (rs.next()) {
+          violations.add("user " + rs.getString(1) + " has " + rs.getInt(3)
+                         + " reservations on day " + rs.getInt(2));
+        }
+      }
+      try (ResultSet rs = s.executeQuery(SEAT_COUNT_SQL)) {
+        while (rs.next()) {
+          violations.add("seat counter of flight " + rs.getInt("fid") + " is " + rs.getInt("booked")
+                         + " but it has " + rs.getInt("actual") + " bookings");
+        }
+      }
+      try (ResultSet rs = s.executeQuery(RESERVATION_IDS_SQL)) {
+        rs.next();
+        if (rs.getLong("n") != rs.getLong("max_id")) {
+          violations.add(rs.getLong("n") + " reservations but the highest ID is "
+                         + rs.getLong("max_id"));
+        }
+      }
+    }
+    if (negativeBalanceResponses.get() > 0) {
+      violations.add(negativeBalanceResponses.get() + " payments reported a negative balance");
+    }
+    return violations;
+  }
+
+  private static Map<String, long[]> snapshot(Map<String, TransactionRunner.OperationStats> stats) {
+    Map<String, long[]> snapshot = new HashMap<>();
+    for (Map.Entry<String, TransactionRunner.OperationStats> e : stats.entrySet()) {
+      snapshot.put(e.getKey(), new long[] {e.getValue().getAttempts(), e.getValue().getAborts()});
+    }
+    return snapshot;
+  }
+
+  /**
+   * Transaction attempts and serialization/deadlock aborts of each operation during the run
+   */
+  private static Map<String, long[]> attemptsSince(Map<String, long[]> before) {
+    Map<String, long[]> delta = new TreeMap<>();
+    for (Map.Entry<String, long[]> e : snapshot(TransactionRunner.getInstance().getStats()).entrySet()) {
+      long[] b = before.getOrDefault(e.getKey(), new long[2]);
+      delta.put(e.getKey(), new long[] {e.getValue()[0] - b[0], e.getValue()[1] - b[1]});
+    }
+    return delta;
+  }
+
+  String report(long elapsedNanos, Map<String, long[]> attemptsBefore, List<String> violations) {
+    StringBuilder sb = new StringBuilder();
+    long total = 0;
+    sb.append(String.format(Locale.ROOT, "%-13s %8s %8s %9s %9s %9s %9s%n", "command", "count",
+                            "ok", "p50_us", "p99_us", "p999_us", "max_us"));
+    for (Map.Entry<String, CommandStats> e : stats.entrySet()) {
+      Histogram h = e.getValue().latency;
+      total += h.getCount();
+      sb.append(String.format(Locale.ROOT, "%-13s %8d %8d %9d %9d %9d %9d%n", e.getKey(),
+                              h.getCount(), e.getValue().succeeded.get(),
+                              h.percentile(0.5) / 1000, h.percentile(0.99) / 1000,
+                              h.percentile(0.999) / 1000, h.getMax() / 1000));
+    }
+    sb.append(String.format(Locale.ROOT, "%d commands in %.2f s: %.1f commands/s%n", total,
+                            elapsedNanos / 1e9, total / (elapsedNanos / 1e9)));
+    for (Map.Entry<String, long[]> e : attemptsSince(attemptsBefore).entrySet()) {
+      long[] a = e.getValue();
+      sb.append(String.format(Locale.ROOT, "%s: %d transaction attempts, %d aborted (%.2f%%)%n",
+                              e.getKey(), a[0], a[1], a[0] == 0 ? 0.0 : 100.0 * a[1] / a[0]));
+    }
+    if (violations.isEmpty()) {
+      sb.append("Invariants hold\n");
+    } else {
+      for (String v : violations) {
+        sb.append("VIOLATION: ").append(v).append('\n');
+      }
+    }
+    return sb.toString();
+  }
+
+  String toJson(long elapsedNanos, Map<String, long[]> attemptsBefore, List<String> violations) {
+    List<String> commands = new ArrayList<>();
+    long total = 0;
+    for (Map.Entry<String, CommandStats> e : stats.entrySet()) {
+      Histogram h = e.getValue().latency;
+      total += h.getCount();
+      commands.add(String.format(Locale.ROOT,
+          "{\"command\": \"%s\", \"count\": %d, \"ok\": %d, \"p50_us\": %d, \"p99_us\": %d, "
+          + "\"p999_us\": %d, \"max_us\": %d}",
+          e.getKey(), h.getCount(), e.getValue().succeeded.get(), h.percentile(0.5) / 1000,
+          h.percentile(0.99) / 1000, h.percentile(0.999) / 1000, h.getMax() / 1000));
+    }
+    List<String> aborts = new ArrayList<>();
+    for (Map.Entry<String, long[]> e : attemptsSince(attemptsBefore).entrySet()) {
+      aborts.add(String.format(Locale.ROOT, "{\"operation\": \"%s\", \"attempts\": %d, \"aborts\": %d}",
+                               e.getKey(), e.getValue()[0], e.getValue()[1]));
+    }
+    List<String> quoted = new ArrayList<>();
+    for (String v : violations) {
+      quoted.add("\"" + v.replace("\\", "\\\\").replace("\"", "\\\"") + "\"");
+    }
+    return String.format(Locale.ROOT,
+        "{\"concurrency\": %d, \"elapsed_s\": %.3f, \"throughput_ops_per_s\": %.2f,%n"
+        + " \"commands\": [%n  %s%n ],%n \"transactions\": [%n  %s%n ],%n \"violations\": [%s]}%n",
+        concurrency, elapsedNanos / 1e9, total / (elapsedNanos / 1e9),
+        String.join(",\n  ", commands), String.join(",\n  ", aborts), String.join(", ", quoted));
+  }
+
+  /**
+   * Latency and successes of one kind of command
+   */
+  private static class CommandStats {
+    final Histogram latency = new Histogram();
+    final AtomicLong succeeded = new AtomicLong();
+  }
+}
@@ -3,12 +3,10 @@ package flightapp;
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.KeySpec;
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.SQLException;
 import java.util.Arrays;
-import java.util.Properties;
 import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
@@ -16,6 +14,11 @@ import javax.crypto.spec.PBEKeySpec;
 
 /**
  * A collection of utility methods to help with managing passwords
+ *
+ * Hashing is deliberately slow, so it runs on a small dedicated pool of hashing threads rather
+ * than on the caller's thread. At most {@code flightapp.password.max_pending} hashes may be
+ * running or queued at once; further callers wait for a slot, which pushes back on a login storm
+ * instead of letting it queue without bound.
  */
 public class PasswordUtils {
   /**
@@ -23,7 +26,7 @@ public class PasswordUtils {
    */
   public static byte[] saltAndHashPassword(String password) {
     byte[] salt = generateSalt();
-    byte[] saltedHash = hashWithSalt(password, salt);
+    byte[] saltedHash = runHash(() -> hashWithSalt(password, salt));
     int length2 = saltedHash.length;
     byte[] result = new byte[SALT_LENGTH_BYTES + length2];
     // TODO: combine the salt and the salted hash into a single byte array that
@@ -37,20 +40,48 @@ public class PasswordUtils {
    * Verifies whether the plaintext password can be hashed to provided salted hashed password.
    */
   public static boolean plaintextMatchesSaltedHash(String plaintext, byte[] saltedHashed) {
-    // TODO: extract the salt from the byte array (ie, undo the logic you implemented in 
+    // TODO: extract the salt from the byte array (ie, undo the logic you implemented in
     // saltAndHashPassword), then use it to check whether the user-provided plaintext
     // password matches the password hash.
     byte[] salt = Arrays.copyOfRange(saltedHashed, 0, SALT_LENGTH_BYTES);
     byte[] saltedHash = Arrays.copyOfRange(saltedHashed, SALT_LENGTH_BYTES, saltedHashed.length);
-    byte[] hashed2 = hashWithSalt(plaintext, salt);
+    byte[] hashed2 = runHash(() -> hashWithSalt(plaintext, salt));
     return Arrays.equals(saltedHash, hashed2);
   }
-  
+
   // Password hashing parameter constants.
   private static final int HASH_STRENGTH = 65536;
   private static final int KEY_LENGTH_BYTES = 128;
   private static final int SALT_LENGTH_BYTES = 16;
 
+  // Hashing executor: bounded by the number of hashes running or queued
+  private static final int HASH_THREADS = Integer.parseInt(DBConnUtils.getProperty(
+      "flightapp.password.threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+  private static final int MAX_PENDING = Integer.parseInt(DBConnUtils.getProperty(
+      "flightapp.password.max_pending", String.valueOf(HASH_THREADS * 16)));
+  private static final Semaphore pendingSlots = new Semaphore(MAX_PENDING, true);
+  private static final ThreadPoolExecutor hashExecutor = new ThreadPoolExecutor(
+      HASH_THREADS, HASH_THREADS, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+      r -> {
+        Thread t = new Thread(r, "flightapp-password-hash");
+        t.setDaemon(true);
+        return t;
+      });
+
+  // Hashing metrics
+  private static final AtomicLong hashesCompleted = new AtomicLong();
+  private static final AtomicLong hashNanos = new AtomicLong();
+  private static final AtomicLong maxQueueDepth = new AtomicLong();
+
+  // Reused per hashing thread, since getInstance is expensive
+  private static final ThreadLocal<SecretKeyFactory> KEY_FACTORY = ThreadLocal.withInitial(() -> {
+    try {
+      return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  });
+
   /**
    * Generate a small bit of randomness to serve as a password "salt"
    */
@@ -62,6 +93,51 @@ public class PasswordUtils {
     return salt;
   }
 
+  /**
+   * Runs a hash on the hashing executor and waits for it, first waiting for a free slot if too
+   * many hashes are already pending. The wait is recorded in the running command's metrics.
+   */
+  private static byte[] runHash(Callable<byte[]> hash) throws IllegalStateException {
+    long start = System.nanoTime();
+    try {
+      return waitForHash(hash);
+    } finally {
+      CommandMetrics.passwordHashed(System.nanoTime() - start);
+    }
+  }
+
+  private static byte[] waitForHash(Callable<byte[]> hash) throws IllegalStateException {
+    try {
+      pendingSlots.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted waiting to hash a password", e);
+    }
+    try {
+      Future<byte[]> result = hashExecutor.submit(() -> {
+        long start = System.nanoTime();
+        try {
+          return hash.call();
+        } finally {
+          hashNanos.addAndGet(System.nanoTime() - start);
+          hashesCompleted.incrementAndGet();
+        }
+      });
+      maxQueueDepth.accumulateAndGet(hashExecutor.getQueue().size(), Math::max);
+      return result.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while hashing a password", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IllegalStateException) {
+        throw (IllegalStateException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    } finally {
+      pendingSlots.release();
+    }
+  }
+
   /**
    * Uses the provided salt to generate a cryptographically-secure hash of the provided password.
    * The resultant byte array will be KEY_LENGTH_BYTES bytes long.
@@ -73,15 +149,35 @@ public class PasswordUtils {
                                   HASH_STRENGTH, KEY_LENGTH_BYTES * 8 /* length in bits */);
 
     // Hash the whole thing
-    SecretKeyFactory factory = null;
-    byte[] hash = null; 
     try {
-      factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-      hash = factory.generateSecret(spec).getEncoded();
-      return hash;
-    } catch (NoSuchAlgorithmException | InvalidKeySpecException ex) {
+      return KEY_FACTORY.get().generateSecret(spec).getEncoded();
+    } catch (InvalidKeySpecException ex) {
       throw new IllegalStateException();
     }
   }
 
+  /**
+   * Get the number of hashes waiting for a hashing thread
+   */
+  public static int getQueueDepth() {
+    return hashExecutor.getQueue().size();
+  }
+
+  /**
+   * Get the deepest the hashing queue has been
+   */
+  public static long getMaxQueueDepth() {
+    return maxQueueDepth.get();
+  }
+
+  public static long getHashesCompleted() {
+    return hashesCompleted.get();
+  }
+
+  /**
+   * Get the total time hashing threads have spent hashing, in nanoseconds
+   */
+  public static long getHashNanos() {
+    return hashNanos.get();
+  }
 }
@@ -0,0 +1,116 @@
+package flightapp;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters of the resources shared by every command, such as the pooled connections' statements
+ * and transactions, the password hashing threads and the search cache, shown after the
+ * per-command table by the "stats" command and published as an MBean.
+ */
+public class ProcessMetrics implements ProcessMetricsMBean {
+  private static final ProcessMetrics INSTANCE = new ProcessMetrics();
+
+  private ProcessMetrics() {
+  }
+
+  public static ProcessMetrics get() {
+    return INSTANCE;
+  }
+
+  static void registerMBean() {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName("flightapp:type=Process");
+      if (!server.isRegistered(name)) {
+        server.registerMBean(INSTANCE, name);
+      }
+    } catch (JMException e) {
+      e.printStackTrace();
+    }
+  }
+
+  public String report() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format(Locale.ROOT, "statements: %d prepared, %d leaked%n",
+                            getStatementsPrepared(), getStatementsLeaked()));
+    sb.append(String.format(Locale.ROOT, "transactions: %d committed, %d rolled back%n",
+                            getTransactionsCommitted(), getTransactionsRolledBack()));
+    sb.append(String.format(Locale.ROOT, "password hashing: %d queued, %d max queued, %d hashes, "
+                            + "%d ms%n", getPasswordQueueDepth(), getPasswordMaxQueueDepth(),
+                            getPasswordHashes(), getPasswordHashMillis()));
+    if (SearchCache.getInstance() != null) {
+      sb.append(String.format(Locale.ROOT, "search cache: %d hits, %d misses, %d evictions, "
+                              + "%d entries%n", getSearchCacheHits(), getSearchCacheMisses(),
+                              getSearchCacheEvictions(), getSearchCacheSize()));
+    }
+    return sb.toString();
+  }
+
+  @Override
+  public long getStatementsPrepared() {
+    return StatementRegistry.getTotalPrepared();
+  }
+
+  @Override
+  public long getStatementsLeaked() {
+    return DBConnUtils.getConnectionPool().getLeakedStatements();
+  }
+
+  @Override
+  public long getTransactionsCommitted() {
+    return TransactionTracker.getTotalCommitted();
+  }
+
+  @Override
+  public long getTransactionsRolledBack() {
+    return TransactionTracker.getTotalRolledBack();
+  }
+
+  @Override
+  public long getSearchCacheHits() {
+    SearchCache cache = SearchCache.getInstance();
+    return cache == null ? 0 : cache.getHits();
+  }
+
+  @Override
+  public long getSearchCacheMisses() {
+    SearchCache cache = SearchCache.getInstance();
+    return cache == null ? 0 : cache.getMisses();
+  }
+
+  @Override
+  public long getSearchCacheEvictions() {
+    SearchCache cache = SearchCache.getInstance();
+    return cache == null ? 0 : cache.getEvictions();
+  }
+
+  @Override
+  public int getSearchCacheSize() {
+    SearchCache cache = SearchCache.getInstance();
+    return cache == null ? 0 : cache.size();
+  }
+
+  @Override
+  public int getPasswordQueueDepth() {
+    return PasswordUtils.getQueueDepth();
+  }
+
+  @Override
+  public long getPasswordMaxQueueDepth() {
+    return PasswordUtils.getMaxQueueDepth();
+  }
+
+  @Override
+  public long getPasswordHashes() {
+    return PasswordUtils.getHashesCompleted();
+  }
+
+  @Override
+  public long getPasswordHashMillis() {
+    return PasswordUtils.getHashNanos() / 1_000_000;
+  }
+}
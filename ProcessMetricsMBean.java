@@ -0,0 +1,45 @@
+package flightapp;
+
+/**
+ * JMX view of the process-wide resources the commands share, registered as flightapp:type=Process
+ */
+public interface ProcessMetricsMBean {
+  /**
+   * Get the number of statements prepared by every pooled connection
+   */
+  long getStatementsPrepared();
+
+  /**
+   * Get the number of statements that were still open when their connection was returned
+   */
+  long getStatementsLeaked();
+
+  long getTransactionsCommitted();
+
+  long getTransactionsRolledBack();
+
+  long getSearchCacheHits();
+
+  long getSearchCacheMisses();
+
+  /**
+   * Get the number of cached searches dropped to make room for new ones
+   */
+  long getSearchCacheEvictions();
+
+  int getSearchCacheSize();
+
+  /**
+   * Get the number of password hashes waiting for a hashing thread
+   */
+  int getPasswordQueueDepth();
+
+  long getPasswordMaxQueueDepth();
+
+  long getPasswordHashes();
+
+  /**
+   * Get the total time hashing threads have spent hashing, in milliseconds
+   */
+  long getPasswordHashMillis();
+}
@@ -2,6 +2,7 @@ package flightapp;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -15,39 +16,150 @@ import java.util.*;
  */
 public class Query extends QueryAbstract {
   //
-  // Canned queries
+  // Canned queries, prepared once per pooled connection by its StatementRegistry
   //
-  private static final String FLIGHT_CAPACITY_SQL = "SELECT capacity FROM Flights WHERE fid = ?";
-  private PreparedStatement flightCapacityStmt;
-
-  private static final String NEXT_RESERVATION_ID_SQL = "SELECT count(*) AS num FROM reservations_ishaj83";
-  private PreparedStatement nextReservationIDStmt;
+  private static final String CLEAR_RESERVATIONS_SQL = "DELETE FROM reservations_ishaj83";
+  private PreparedStatement clearReservationsStmt;
+
+  private static final String CLEAR_USERS_SQL = "DELETE FROM users_ishaj83";
+  private PreparedStatement clearUsersStmt;
+
+  private static final String USER_SQL = "SELECT * FROM users_ishaj83 WHERE username = ?";
+  private PreparedStatement userStmt;
+
+  // Serializes a user's bookings, so the same-day check sees every earlier booking
+  private static final String LOCK_USER_SQL = "SELECT username FROM users_ishaj83 WHERE username = ? FOR UPDATE";
+  private PreparedStatement lockUserStmt;
+
+  // Inserts nothing if the username is taken, even by a concurrent create
+  private static final String CREATE_USER_SQL = "INSERT INTO users_ishaj83 VALUES (?, ?, ?) ON CONFLICT DO NOTHING";
+  private PreparedStatement createUserStmt;
+
+  private static final String DIRECT_SEARCH_SQL = "SELECT * FROM Flights "
+    + "WHERE origin_city = ? AND dest_city = ? "
+    + "AND day_of_month =  " + "?" + " "
+    + "AND canceled != 1" + " "
+    + "ORDER BY actual_time, fid ASC LIMIT ?";
+
+  private static final String INDIRECT_SEARCH_SQL = "SELECT f1.fid AS f1_fid, f2.fid AS f2_fid, f1.origin_city AS origin, f1.dest_city AS stopover, f2.dest_city AS dest, f1.carrier_id AS f1_carrier_id, f2.carrier_id AS f2_carrier_id, f1.flight_num AS f1_flight_num, f2.flight_num AS f2_flight_num, f1.actual_time AS f1_actual_time,f2.actual_time AS f2_actual_time, f1.actual_time+f2.actual_time AS total_time, f1.capacity AS f1_capacity, f1.price AS f1_price, f2.capacity AS f2_capacity, f2.price AS f2_price FROM flights f1, flights f2 "
+    + "WHERE f1.origin_city= ? and f2.dest_city = ? AND f1.dest_city = f2.origin_city AND f1.day_of_month = ? AND f2.day_of_month = ? AND f1.canceled = 0 AND f2.canceled = 0 ORDER BY total_time, f1.fid, f2.fid ASC LIMIT ?;";
+
+  // Direct and one-stop itineraries in one round trip, already in display order: by total time,
+  // direct before one-stop, then by fids. One-stop itineraries only fill what the direct ones
+  // leave of the requested number, as with the two separate searches.
+  private static final String UNION_SEARCH_SQL = "WITH direct AS ("
+    + "SELECT 0 AS kind, f.actual_time AS total_time, f.fid AS fid1, NULL::int AS fid2 FROM Flights f "
+    + "WHERE f.origin_city = ? AND f.dest_city = ? AND f.day_of_month = ? AND f.canceled != 1 "
+    + "ORDER BY f.actual_time, f.fid LIMIT ?), "
+    + "one_stop AS (SELECT 1 AS kind, f1.actual_time + f2.actual_time AS total_time, "
+    + "f1.fid AS fid1, f2.fid AS fid2 FROM Flights f1 JOIN Flights f2 ON f1.dest_city = f2.origin_city "
+    + "WHERE ? AND f1.origin_city = ? AND f2.dest_city = ? AND f1.day_of_month = ? "
+    + "AND f2.day_of_month = ? AND f1.canceled = 0 AND f2.canceled = 0 "
+    + "ORDER BY total_time, f1.fid, f2.fid LIMIT greatest(? - (SELECT count(*) FROM direct), 0)) "
+    + "SELECT it.kind, "
+    + "f1.fid AS f1_fid, f1.day_of_month AS f1_day_of_month, f1.carrier_id AS f1_carrier_id, "
+    + "f1.flight_num AS f1_flight_num, f1.origin_city AS f1_origin_city, f1.dest_city AS f1_dest_city, "
+    + "f1.actual_time AS f1_actual_time, f1.capacity AS f1_capacity, f1.price AS f1_price, "
+    + "f2.fid AS f2_fid, f2.day_of_month AS f2_day_of_month, f2.carrier_id AS f2_carrier_id, "
+    + "f2.flight_num AS f2_flight_num, f2.origin_city AS f2_origin_city, f2.dest_city AS f2_dest_city, "
+    + "f2.actual_time AS f2_actual_time, f2.capacity AS f2_capacity, f2.price AS f2_price "
+    + "FROM (SELECT * FROM direct UNION ALL SELECT * FROM one_stop) it "
+    + "JOIN Flights f1 ON f1.fid = it.fid1 LEFT JOIN Flights f2 ON f2.fid = it.fid2 "
+    + "ORDER BY it.total_time, it.kind, it.fid1, it.fid2";
+
+  // A user's reservations together with both legs, in one round trip
+  private static final String USER_RESERVATIONS_SQL = "SELECT r.reservationID, r.paid, "
+    + "f1.fid AS f1_fid, f1.day_of_month AS f1_day_of_month, f1.carrier_id AS f1_carrier_id, "
+    + "f1.flight_num AS f1_flight_num, f1.origin_city AS f1_origin_city, f1.dest_city AS f1_dest_city, "
+    + "f1.actual_time AS f1_actual_time, f1.capacity AS f1_capacity, f1.price AS f1_price, "
+    + "f2.fid AS f2_fid, f2.day_of_month AS f2_day_of_month, f2.carrier_id AS f2_carrier_id, "
+    + "f2.flight_num AS f2_flight_num, f2.origin_city AS f2_origin_city, f2.dest_city AS f2_dest_city, "
+    + "f2.actual_time AS f2_actual_time, f2.capacity AS f2_capacity, f2.price AS f2_price, "
+    + "(SELECT string_agg(l.fid::text, ',' ORDER BY l.leg) FROM reservation_legs_ishaj83 l "
+    + "WHERE l.reservationID = r.reservationID) AS more_fids "
+    + "FROM reservations_ishaj83 r JOIN Flights f1 ON f1.fid = r.flightID1 "
+    + "LEFT JOIN Flights f2 ON f2.fid = r.flightID2 "
+    + "WHERE r.username = ? ORDER BY r.reservationID";
+
+  private static final String FLIGHT_SQL = "SELECT * FROM Flights WHERE fid = ?";
 
   private static final String RESERVATION_SAME_DAY_SQL = "SELECT count(*) AS num FROM reservations_ishaj83 WHERE day_of_month = ? AND username = ?";
   private PreparedStatement reservationSameDayStmt;
 
-  private static final String CHECK_CURR_FLIGHT1_CAP_SQL = "SELECT count(*) AS num FROM reservations_ishaj83 WHERE day_of_month = ? AND flightID1 = ?";
-  private PreparedStatement flight1CapStmt;
-
-  private static final String CHECK_CURR_FLIGHT2_CAP_SQL = "SELECT count(*) AS num FROM reservations_ishaj83 WHERE day_of_month = ? AND flightID2 = ?";
-  private PreparedStatement flight2CapStmt;
-  
-  private static final String CHECK_RES_ID_EXISTS_SQL = "SELECT count(*) AS num FROM reservations_ishaj83 WHERE reservationID = ? AND paid = false AND username = ?";
-  private PreparedStatement checkResIdStmt;
+  // Prices only the reservation being paid, then marks it paid and debits the user only if the
+  // balance covers the price. The outer SELECT sees the balance from before the debit. The
+  // reservation row is locked first, so a concurrent payment of it waits and then finds it paid;
+  // the debit re-checks the balance on the user's latest row.
+  private static final String PAY_RESERVATION_SQL = "WITH res AS ("
+    + "SELECT f1.price + coalesce(f2.price, 0) + coalesce((SELECT sum(lf.price) "
+    + "FROM reservation_legs_ishaj83 l JOIN Flights lf ON lf.fid = l.fid "
+    + "WHERE l.reservationID = r.reservationID), 0) AS price FROM reservations_ishaj83 r "
+    + "JOIN Flights f1 ON f1.fid = r.flightID1 LEFT JOIN Flights f2 ON f2.fid = r.flightID2 "
+    + "WHERE r.reservationID = ? AND r.username = ? AND r.paid = false FOR UPDATE OF r), "
+    + "debit AS (UPDATE users_ishaj83 u SET balance = u.balance - res.price FROM res "
+    + "WHERE u.username = ? AND u.balance >= res.price RETURNING u.balance), "
+    + "paid AS (UPDATE reservations_ishaj83 r SET paid = true FROM debit "
+    + "WHERE r.reservationID = ? RETURNING r.reservationID) "
+    + "SELECT res.price, (SELECT balance FROM debit) AS new_balance, "
+    + "(SELECT balance FROM users_ishaj83 WHERE username = ?) AS old_balance FROM res";
+  private PreparedStatement payReservationStmt;
 
-  private static final String CHECK_USER_BALANCE_SQL = "SELECT balance FROM users_ishaj83 WHERE username = ?";
-  private PreparedStatement checkBalanceStmt;
+  //
+  // Search engines, selected with flightapp.search_engine in dbconn.properties
+  //
+  private static final String SEARCH_ENGINE_SQL = "sql";
+  private static final String SEARCH_ENGINE_INDEX = "index";
+  private static final String SEARCH_ENGINE_UNION = "union";
 
   // Instance variables
   //
 
   private String loggedInUser;
   private List<Itinerary> itineraries;
+  private String searchEngine;
+  private long multiStopBudgetNanos;
+  private int maxStopsLimit;
+  private SeatInventory seats;
+  private ReservationIdAllocator reservationIds;
+  private TransactionRunner runner;
+  private SearchCache searchCache;
+  private FlightCache flightCache;
+  private ReplicaRouter replicaRouter;
+  private BookingBatcher batcher;
+  private FlightChangeFeed changes;
+  private boolean isolationChanged;
+  private long lastWriteLsn;
 
   protected Query() throws SQLException, IOException {
+    super();
+    init();
+  }
+
+  /**
+   * @param connectionPerCommand if true, borrow a pooled connection only while a command runs
+   */
+  protected Query(boolean connectionPerCommand) throws SQLException, IOException {
+    super(connectionPerCommand);
+    init();
+  }
+
+  private void init() throws SQLException {
     loggedInUser = null;
     itineraries = new ArrayList<>();
-    prepareStatements();
+    searchEngine = DBConnUtils.getProperty("flightapp.search_engine", SEARCH_ENGINE_SQL);
+    multiStopBudgetNanos = 1000000L * Long.parseLong(
+        DBConnUtils.getProperty("flightapp.search.multi_stop_budget_ms", "100"));
+    maxStopsLimit = Integer.parseInt(DBConnUtils.getProperty("flightapp.search.max_stops", "4"));
+    runner = TransactionRunner.getInstance();
+    searchCache = SearchCache.getInstance();
+    flightCache = FlightCache.getInstance();
+    replicaRouter = ReplicaRouter.getInstance();
+    batcher = BookingBatcher.getInstance();
+    // listen for flight changes before anything is cached
+    changes = FlightChangeFeed.getInstance();
+    if (conn != null) {
+      prepareStatements();
+    }
   }
 
   /**
@@ -57,13 +169,15 @@ public class Query extends QueryAbstract {
    */
   public void clearTables() {
     try {
-      String clearTableUnsafe = "DELETE FROM reservations_ishaj83";
-      PreparedStatement ps = conn.prepareStatement(clearTableUnsafe);
-      int result = ps.executeUpdate();
-      
-      clearTableUnsafe = "DELETE FROM users_ishaj83";
-      ps = conn.prepareStatement(clearTableUnsafe);
-      result = ps.executeUpdate(); 
+      CommandMetrics.executeUpdate(clearReservationsStmt);
+      CommandMetrics.executeUpdate(clearUsersStmt);
+
+      SeatInventory.clear(conn);
+      ReservationIdAllocator.clear(conn);
+      EventJournal journal = EventJournal.getInstance();
+      if (journal != null) {
+        journal.clear();
+      }
     } catch (Exception e) {
       e.printStackTrace();
     }
@@ -72,14 +186,17 @@ public class Query extends QueryAbstract {
   /*
    * prepare all the SQL statements in this method.
    */
-  private void prepareStatements() throws SQLException {
-    flightCapacityStmt = conn.prepareStatement(FLIGHT_CAPACITY_SQL);
-    nextReservationIDStmt = conn.prepareStatement(NEXT_RESERVATION_ID_SQL);
-    reservationSameDayStmt = conn.prepareStatement(RESERVATION_SAME_DAY_SQL);
-    flight1CapStmt = conn.prepareStatement(CHECK_CURR_FLIGHT1_CAP_SQL);
-    flight2CapStmt = conn.prepareStatement(CHECK_CURR_FLIGHT2_CAP_SQL);
-    checkResIdStmt = conn.prepareStatement(CHECK_RES_ID_EXISTS_SQL);
-    checkBalanceStmt = conn.prepareStatement(CHECK_USER_BALANCE_SQL);
+  protected void prepareStatements() throws SQLException {
+    clearReservationsStmt = statements.get(CLEAR_RESERVATIONS_SQL);
+    clearUsersStmt = statements.get(CLEAR_USERS_SQL);
+    userStmt = statements.get(USER_SQL);
+    lockUserStmt = statements.get(LOCK_USER_SQL);
+    createUserStmt = statements.get(CREATE_USER_SQL);
+    reservationSameDayStmt = statements.get(RESERVATION_SAME_DAY_SQL);
+    payReservationStmt = statements.get(PAY_RESERVATION_SQL);
+    // the allocator creates the reservation legs table that the seat recount reads
+    reservationIds = new ReservationIdAllocator(statements);
+    seats = new SeatInventory(statements);
   }
 
   /* See QueryAbstract.java for javadoc */
@@ -89,100 +206,67 @@ public class Query extends QueryAbstract {
       //if(!loggedInUser.equals(username))
         return "User already logged in\n";
     }
-    String query = "SELECT * FROM users_ishaj83 WHERE username = ?";
-    
-    ResultSet rs = null;
-    try {
-      conn.setAutoCommit(false);
+    byte[] saltedHashedPW = getSaltedHashedPassword(username);
+    if(saltedHashedPW == null) {
+      return "Login failed\n";
+    }
 
-      PreparedStatement ps = conn.prepareStatement(query);
-      ps.clearParameters();
-      ps.setString(1, username);
-      rs = ps.executeQuery();
-      if(!rs.next()) {
-        conn.rollback();
-        //conn.setAutoCommit(true); // End transaction
-        return "Login failed\n";
-      }
-      byte[] saltedHashedPW = rs.getBytes("hashedPassword"); 
-      rs.close();
-      ps.close();
-
-      boolean match = PasswordUtils.plaintextMatchesSaltedHash(password, saltedHashedPW);
-      if(!match) {
-        conn.rollback();
-        return "Login failed\n";
-      }
-      
-      loggedInUser = username;
-      conn.commit();
-    } catch (SQLException e) {
-        try {
-            conn.rollback(); // Ensure rollback on failure
-            if (isDeadlock(e)) {
-                return transaction_login(username, password); // Retry on deadlock
-            }
-        } catch (SQLException ex) {
-            ex.printStackTrace();
-        }
-        e.printStackTrace();
-    } finally {
-        try {
-            conn.setAutoCommit(true); // Restore default behavior
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
+    // hashing is slow CPU work, so it runs without holding a database connection
+    boolean match = withoutConnection(
+        () -> PasswordUtils.plaintextMatchesSaltedHash(password, saltedHashedPW));
+    if(!match) {
+      return "Login failed\n";
     }
 
+    loggedInUser = username;
     return "Logged in as " + loggedInUser + "\n";
   }
 
+  /**
+   * Utility function to read a user's salted password hash in a single auto-committed statement
+   *
+   * @return null if the user doesn't exist or the read failed
+   */
+  private byte[] getSaltedHashedPassword(String username) {
+    return runner.run("login", conn, () -> {
+      PreparedStatement ps = userStmt;
+      ps.clearParameters();
+      ps.setString(1, username);
+      try (ResultSet rs = CommandMetrics.executeQuery(ps)) {
+        if(!CommandMetrics.next(rs)) {
+          return null;
+        }
+        return rs.getBytes("hashedPassword");
+      }
+    }, null);
+  }
+
   /* See QueryAbstract.java for javadoc */
   public String transaction_createCustomer(String username, String password, int initAmount) {
     if(initAmount<0 || username.equals("")) {
       return "Failed to create user\n";
     }
-    try {
-      conn.setAutoCommit(false);
+    // hash before the transaction starts, without holding a database connection
+    byte[] saltedHashedPW = withoutConnection(() -> PasswordUtils.saltAndHashPassword(password));
+    return insertCustomer(username, saltedHashedPW, initAmount);
+  }
 
-      String query = "SELECT username from users_ishaj83 WHERE username = ?";
-      PreparedStatement ps = conn.prepareStatement(query);
-      ps.clearParameters();
-      ps.setString(1, username);
-      ResultSet rs = ps.executeQuery();
-      if(rs.next()) {
-        conn.rollback();
-        conn.setAutoCommit(true);
-        return "Failed to create user\n";
-      }
-      query = "INSERT INTO users_ishaj83 VALUES (?, ?, ?)";
-      ps = conn.prepareStatement(query);
+  /**
+   * Utility function to insert a new user whose password has already been hashed
+   */
+  private String insertCustomer(String username, byte[] saltedHashedPW, int initAmount) {
+    // a single auto-committed insert; a taken username inserts no row
+    return runner.run("create", conn, () -> {
+      PreparedStatement ps = createUserStmt;
       ps.clearParameters();
       ps.setString(1, username); 
-      ps.setBytes(2, PasswordUtils.saltAndHashPassword(password)); 
+      ps.setBytes(2, saltedHashedPW); 
       ps.setInt(3, initAmount);
-      int result = ps.executeUpdate();
-      if(result == 0) {
-        conn.rollback();
-        conn.setAutoCommit(true);
+      if(CommandMetrics.executeUpdate(ps) == 0) {
         return "Failed to create user\n";
       }
-      conn.commit();
-      conn.setAutoCommit(true);
       return "Created user " + username  + "\n";
-    } catch (SQLException e) {
-      try {
-        conn.rollback();
-        if(isDeadlock(e)) {
-          return transaction_createCustomer(username, password, initAmount);
-        } else {
-          return "Failed to create user\n";
-        }
-      } catch(SQLException f) {
-        f.printStackTrace();
-        return "Failed to create user\n";
-      }
-    }
+    }, "Failed to create user\n");
   }
 
   
@@ -196,174 +280,295 @@ public class Query extends QueryAbstract {
     //
 
     StringBuffer sb = new StringBuffer();
-    int itineraryID = 0;
     itineraries.clear();
-    try {
-      // one hop itineraries
-      
-      String directSearchSQL = "SELECT * FROM Flights " 
-        + "WHERE origin_city = ? AND dest_city = ? "
-        + "AND day_of_month =  " + "?" + " "
-        + "AND canceled != 1" + " "
-        + "ORDER BY actual_time, fid ASC LIMIT ?";
-      
-      PreparedStatement ps = conn.prepareStatement(directSearchSQL);
+    // every engine must fail the same way, so reject this before choosing one
+    if (numberOfItineraries < 0) {
+      return "Failed to search\n";
+    }
+    // while flight changes may not have been applied, search the database itself
+    boolean behind = changes != null && changes.isBehind();
+    SearchCache cache = behind ? null : searchCache;
+    SearchResult cached = null;
+    long generation = 0;
+    if (cache != null) {
+      generation = cache.getGeneration();
+      cached = cache.get(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries);
+    }
+    SearchResult result = cached != null ? cached : runner.run("search", conn, () -> {
+      if (SEARCH_ENGINE_INDEX.equals(searchEngine) && !behind) {
+        return searchRouteIndex(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries);
+      }
+      if (SEARCH_ENGINE_UNION.equals(searchEngine)) {
+        return read(s -> searchUnion(s, originCity, destinationCity, directFlight, dayOfMonth,
+                                     numberOfItineraries));
+      }
+      return read(s -> searchDatabase(s, originCity, destinationCity, directFlight, dayOfMonth,
+                                      numberOfItineraries));
+    }, null);
+    if (result == null) {
+      return "Failed to search\n";
+    }
+    if (cached == null && cache != null) {
+      cache.put(originCity, destinationCity, directFlight, dayOfMonth, result, generation);
+    }
+    // candidates are already ranked, so itineraries come out sorted and numbered
+    addItineraries(result, numberOfItineraries);
+    if(itineraries.isEmpty()) {
+      return "No flights match your selection\n";
+    }
+    for(Itinerary itinerary : itineraries) {
+      sb.append(itinerary.toString() + "\n");
+    }
+    return sb.toString();
+  }
+
+  /* See QueryAbstract.java for javadoc */
+  public String transaction_search(String originCity, String destinationCity, int dayOfMonth,
+                                   int numberOfItineraries, int maxStops) {
+    if (maxStops < 0 || numberOfItineraries < 0) {
+      return "Failed to search\n";
+    }
+    // the work grows with every stop allowed, so more than the limit searches with the limit
+    int stops = Math.min(maxStops, maxStopsLimit);
+    if (stops <= 1) {
+      return transaction_search(originCity, destinationCity, stops == 0, dayOfMonth,
+                                numberOfItineraries);
+    }
+
+    itineraries.clear();
+    List<Flight[]> ranked = runner.run("search", conn, () ->
+        RouteIndex.getInstance(conn).searchMultiStop(originCity, destinationCity, dayOfMonth,
+                                                     numberOfItineraries, stops + 1,
+                                                     multiStopBudgetNanos), null);
+    if (ranked == null) {
+      return "Failed to search\n";
+    }
+    if (ranked.isEmpty()) {
+      return "No flights match your selection\n";
+    }
+    StringBuffer sb = new StringBuffer();
+    for (Flight[] legs : ranked) {
+      Itinerary itinerary = new Itinerary(itineraries.size(), legs);
+      itineraries.add(itinerary);
+      sb.append(itinerary.toString() + "\n");
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Utility function to fetch direct and one-stop search candidates from the Flights table
+   *
+   * @param s statements of the primary or replica connection to search on
+   */
+  private SearchResult searchDatabase(StatementRegistry s, String originCity, String destinationCity,
+                                      boolean directFlight, int dayOfMonth, int numberOfItineraries)
+    throws SQLException {
+    List<Flight> direct = new ArrayList<>();
+    List<Flight[]> oneStop = new ArrayList<>();
+    int itineraryID = 0;
+    // one hop itineraries
+    PreparedStatement ps = s.get(DIRECT_SEARCH_SQL);
+    ps.clearParameters();
+    
+    ps.setString(1, originCity);
+    ps.setString(2, destinationCity);
+    ps.setInt(3, dayOfMonth);
+    ps.setInt(4, numberOfItineraries);
+    ResultSet oneHopResults = CommandMetrics.executeQuery(ps);
+    
+    while (CommandMetrics.next(oneHopResults) && itineraryID<numberOfItineraries) {
+      int result_dayOfMonth = oneHopResults.getInt("day_of_month");
+      String result_carrierId = oneHopResults.getString("carrier_id");
+      String result_flightNum = oneHopResults.getString("flight_num");
+      String result_originCity = oneHopResults.getString("origin_city");
+      String result_destCity = oneHopResults.getString("dest_city");
+      int result_time = oneHopResults.getInt("actual_time");
+      int result_capacity = oneHopResults.getInt("capacity");
+      int result_price = oneHopResults.getInt("price");
+      int result_fid = oneHopResults.getInt("fid");
+      Flight f = new Flight(result_fid, result_dayOfMonth, result_carrierId, result_flightNum, result_originCity, result_destCity, result_time, result_capacity, result_price);
+      direct.add(f);
+      itineraryID++;
+    }
+    
+    oneHopResults.close();
+  
+    // indirect flights
+    int i = numberOfItineraries - itineraryID;
+    if(i>0 && !directFlight) {
+      ps = s.get(INDIRECT_SEARCH_SQL);
       ps.clearParameters();
-      
       ps.setString(1, originCity);
       ps.setString(2, destinationCity);
       ps.setInt(3, dayOfMonth);
-      ps.setInt(4, numberOfItineraries);
-      ResultSet oneHopResults = ps.executeQuery();
-      
-      while (oneHopResults.next() && itineraryID<numberOfItineraries) {
-        int result_dayOfMonth = oneHopResults.getInt("day_of_month");
-        String result_carrierId = oneHopResults.getString("carrier_id");
-        String result_flightNum = oneHopResults.getString("flight_num");
-        String result_originCity = oneHopResults.getString("origin_city");
-        String result_destCity = oneHopResults.getString("dest_city");
-        int result_time = oneHopResults.getInt("actual_time");
-        int result_capacity = oneHopResults.getInt("capacity");
-        int result_price = oneHopResults.getInt("price");
-        int result_fid = oneHopResults.getInt("fid");
-        Flight f = new Flight(result_fid, result_dayOfMonth, result_carrierId, result_flightNum, result_originCity, result_destCity, result_time, result_capacity, result_price);
-        Itinerary i = new Itinerary(itineraryID, f, null, result_originCity, result_destCity, null, result_time);
-        itineraries.add(i);
+      ps.setInt(4, dayOfMonth);
+      ps.setInt(5, numberOfItineraries);
+
+      ResultSet twoHopResults = CommandMetrics.executeQuery(ps);
+
+      while(CommandMetrics.next(twoHopResults) && itineraryID<numberOfItineraries) {
+        String f1_carrierId = twoHopResults.getString("f1_carrier_id");
+        String f1_flightNum = twoHopResults.getString("f1_flight_num");
+        String f1_originCity = twoHopResults.getString("origin");
+        String f1_destCity = twoHopResults.getString("stopover");
+        int f1_time = twoHopResults.getInt("f1_actual_time");
+        int f1_capacity = twoHopResults.getInt("f1_capacity");
+        int f1_price = twoHopResults.getInt("f1_price");
+        int f1_fid = twoHopResults.getInt("f1_fid");
+
+        String f2_carrierId = twoHopResults.getString("f2_carrier_id");
+        String f2_flightNum = twoHopResults.getString("f2_flight_num");
+        String f2_originCity = twoHopResults.getString("stopover");
+        String f2_destCity = twoHopResults.getString("dest");
+        int f2_time = twoHopResults.getInt("f2_actual_time");
+        int f2_capacity = twoHopResults.getInt("f2_capacity");
+        int f2_price = twoHopResults.getInt("f2_price");
+        int f2_fid = twoHopResults.getInt("f2_fid");
+
+        Flight f1 = new Flight(f1_fid, dayOfMonth, f1_carrierId, f1_flightNum, f1_originCity, f1_destCity, f1_time, f1_capacity, f1_price);
+        Flight f2 = new Flight(f2_fid, dayOfMonth, f2_carrierId, f2_flightNum, f2_originCity, f2_destCity, f2_time, f2_capacity, f2_price);
+        oneStop.add(new Flight[] {f1, f2});
         itineraryID++;
       }
-      
-      oneHopResults.close();
-    
-      // indirect flights
-      int i = numberOfItineraries - itineraryID;
-      if(i>0 && !directFlight) {
-        String indirectSearchSQL = "SELECT f1.fid AS f1_fid, f2.fid AS f2_fid, f1.origin_city AS origin, f1.dest_city AS stopover, f2.dest_city AS dest, f1.carrier_id AS f1_carrier_id, f2.carrier_id AS f2_carrier_id, f1.flight_num AS f1_flight_num, f2.flight_num AS f2_flight_num, f1.actual_time AS f1_actual_time,f2.actual_time AS f2_actual_time, f1.actual_time+f2.actual_time AS total_time, f1.capacity AS f1_capacity, f1.price AS f1_price, f2.capacity AS f2_capacity, f2.price AS f2_price FROM flights f1, flights f2 " 
-        + "WHERE f1.origin_city= ? and f2.dest_city = ? AND f1.dest_city = f2.origin_city AND f1.day_of_month = ? AND f2.day_of_month = ? AND f1.canceled = 0 AND f2.canceled = 0 ORDER BY total_time, f1.fid, f2.fid ASC LIMIT ?;";
-
-        ps = conn.prepareStatement(indirectSearchSQL);
-        ps.clearParameters();
-        ps.setString(1, originCity);
-        ps.setString(2, destinationCity);
-        ps.setInt(3, dayOfMonth);
-        ps.setInt(4, dayOfMonth);
-        ps.setInt(5, numberOfItineraries);
-
-        ResultSet twoHopResults = ps.executeQuery();
-
-        while(twoHopResults.next() && itineraryID<numberOfItineraries) {
-          String f1_carrierId = twoHopResults.getString("f1_carrier_id");
-          String f1_flightNum = twoHopResults.getString("f1_flight_num");
-          String f1_originCity = twoHopResults.getString("origin");
-          String f1_destCity = twoHopResults.getString("stopover");
-          int f1_time = twoHopResults.getInt("f1_actual_time");
-          int f1_capacity = twoHopResults.getInt("f1_capacity");
-          int f1_price = twoHopResults.getInt("f1_price");
-          int f1_fid = twoHopResults.getInt("f1_fid");
-
-          String f2_carrierId = twoHopResults.getString("f2_carrier_id");
-          String f2_flightNum = twoHopResults.getString("f2_flight_num");
-          String f2_originCity = twoHopResults.getString("stopover");
-          String f2_destCity = twoHopResults.getString("dest");
-          int f2_time = twoHopResults.getInt("f2_actual_time");
-          int f2_capacity = twoHopResults.getInt("f2_capacity");
-          int f2_price = twoHopResults.getInt("f2_price");
-          int f2_fid = twoHopResults.getInt("f2_fid");
-
-          Flight f1 = new Flight(f1_fid, dayOfMonth, f1_carrierId, f1_flightNum, f1_originCity, f1_destCity, f1_time, f1_capacity, f1_price);
-          Flight f2 = new Flight(f2_fid, dayOfMonth, f2_carrierId, f2_flightNum, f2_originCity, f2_destCity, f2_time, f2_capacity, f2_price);
-          Itinerary it = new Itinerary(itineraryID, f1, f2, f1_originCity, f2_destCity, f1_destCity, f1_time+f2_time);
-          itineraries.add(it);
-          itineraryID++;
-        }
-      } 
-      if(itineraryID==0) {
-        return "No flights match your selection\n";
+      twoHopResults.close();
+    }
+    return new SearchResult(numberOfItineraries, directFlight, direct, oneStop);
+  }
+
+  /**
+   * Utility function to fetch direct and one-stop search candidates from the Flights table with a
+   * single statement that returns them ranked
+   *
+   * @param s statements of the primary or replica connection to search on
+   */
+  private SearchResult searchUnion(StatementRegistry s, String originCity, String destinationCity,
+                                   boolean directFlight, int dayOfMonth, int numberOfItineraries)
+    throws SQLException {
+    PreparedStatement ps = s.get(UNION_SEARCH_SQL);
+    ps.clearParameters();
+    ps.setString(1, originCity);
+    ps.setString(2, destinationCity);
+    ps.setInt(3, dayOfMonth);
+    ps.setInt(4, numberOfItineraries);
+    ps.setBoolean(5, !directFlight);
+    ps.setString(6, originCity);
+    ps.setString(7, destinationCity);
+    ps.setInt(8, dayOfMonth);
+    ps.setInt(9, dayOfMonth);
+    ps.setInt(10, numberOfItineraries);
+
+    List<Flight[]> ranked = new ArrayList<>();
+    try (ResultSet rs = CommandMetrics.executeQuery(ps)) {
+      while (CommandMetrics.next(rs)) {
+        Flight f1 = newFlight(rs, "f1_");
+        ranked.add(rs.getInt("kind") == 0 ? new Flight[] {f1} : new Flight[] {f1, newFlight(rs, "f2_")});
       }
-      Collections.sort(itineraries, (i1, i2) -> i1.totalTime-i2.totalTime);
-      int n = 0;
-      for(Itinerary itinerary : itineraries) {
-        itinerary.setId(n);
-        sb.append(itinerary.toString() + "\n");
-        n++;
+    }
+    return new SearchResult(numberOfItineraries, directFlight, ranked);
+  }
+
+  /**
+   * Utility function to fetch direct and one-stop search candidates from the in-memory route index
+   */
+  private SearchResult searchRouteIndex(String originCity, String destinationCity, boolean directFlight,
+                                        int dayOfMonth, int numberOfItineraries) throws SQLException {
+    RouteIndex index = RouteIndex.getInstance(conn);
+    List<Flight> direct = index.searchDirect(originCity, destinationCity, dayOfMonth, numberOfItineraries);
+    List<Flight[]> oneStop = new ArrayList<>();
+    int remaining = numberOfItineraries - direct.size();
+    if (remaining > 0 && !directFlight) {
+      oneStop = index.searchOneStop(originCity, destinationCity, dayOfMonth, remaining);
+    }
+    return new SearchResult(numberOfItineraries, directFlight, direct, oneStop);
+  }
+
+  /**
+   * Utility function to fill this session's itineraries from ranked search candidates, in order.
+   * Direct flights take priority; one-stop itineraries fill whatever remains of
+   * {@code numberOfItineraries}.
+   */
+  private void addItineraries(SearchResult result, int numberOfItineraries) {
+    int directLeft = Math.min(result.directCount, numberOfItineraries);
+    int oneStopLeft = numberOfItineraries - directLeft;
+    for (Flight[] legs : result.ranked) {
+      if (directLeft == 0 && oneStopLeft == 0) {
+        return;
+      }
+      if (legs.length == 1) {
+        if (directLeft > 0) {
+          directLeft--;
+          itineraries.add(new Itinerary(itineraries.size(), legs));
+        }
+      } else if (oneStopLeft > 0) {
+        oneStopLeft--;
+        itineraries.add(new Itinerary(itineraries.size(), legs));
       }
-    } catch (SQLException e) {
-      e.printStackTrace();
-      return "Failed to search\n";
     }
-    return sb.toString();
   }
 
   /* See QueryAbstract.java for javadoc */
   public String transaction_book(int itineraryId) {
-    try {
-      // check if user is logged in
-      if(loggedInUser == null)
-        return "Cannot book reservations, not logged in\n";
-      // user must enter a valid itinerary id returned from the most recent 
-      // search performed within the same login session
-      if(itineraries.isEmpty() || itineraryId < 0 || itineraryId >= itineraries.size())
-        return "No such itinerary " +  itineraryId + "\n";
-    
-      Itinerary i = itineraries.get(itineraryId);
-      if(i == null) 
-        return "No such itinerary " +  itineraryId + "\n";
-
-      conn.setAutoCommit(false);
-      // check if reservation already exists
-      if(doesReservationExist(i.getDay())) {
-        conn.rollback();
-        return "You cannot book two flights in the same day\n";
-      }
-
-      // check flight capacities
-      int flight1Cap = checkFlightCapacity(i.getFlight1ID());
-      if(currFlightCapacity(i.getDay(), "flightID1", i.getFlight1ID()) >= flight1Cap) {
-        conn.rollback();
-        return "Booking failed\n";
+    // check if user is logged in
+    if(loggedInUser == null)
+      return "Cannot book reservations, not logged in\n";
+    // user must enter a valid itinerary id returned from the most recent 
+    // search performed within the same login session
+    if(itineraries.isEmpty() || itineraryId < 0 || itineraryId >= itineraries.size())
+      return "No such itinerary " +  itineraryId + "\n";
+
+    Itinerary i = itineraries.get(itineraryId);
+    if(i == null) 
+      return "No such itinerary " +  itineraryId + "\n";
+
+    // with group commit on, the booking is made in the next batch
+    if (batcher != null) {
+      String response = batcher.book(loggedInUser, i.getDay(), i.getFlightIDs());
+      if (response.startsWith("Booked")) {
+        noteWrite();
       }
+      return response;
+    }
 
-      if(i.getFlight2ID() != -1) {
-        int flight2Cap = checkFlightCapacity(i.getFlight2ID());
-        if(currFlightCapacity(i.getDay(), "flightID2", i.getFlight2ID()) >= flight2Cap) {
+    // Only the rows this booking touches are locked: the user's row and the seat counters of its
+    // flights. Each statement re-checks its condition against the latest committed rows, so READ
+    // COMMITTED is enough.
+    try {
+      beginTransaction(Connection.TRANSACTION_READ_COMMITTED, false);
+      return runner.run("book", conn, () -> {
+        // wait for this user's other bookings, then check if reservation already exists
+        lockUser();
+        if(doesReservationExist(i.getDay())) {
           conn.rollback();
-          return "Booking failed\n";
+          return "You cannot book two flights in the same day\n";
         }
-      }
-      
-      // book the itinerary
-      String query = "INSERT INTO reservations_ishaj83 VALUES (?, ?, ?, ?, ?, ?)";
-      PreparedStatement ps = conn.prepareStatement(query);
-      ps.clearParameters();
-      int resId = getNextResID();
-      ps.setInt(1, resId); 
-      ps.setBoolean(2, false);
-      ps.setInt(3, i.getDay());
-      ps.setString(4, loggedInUser);
-      ps.setInt(5, i.getFlight1ID());
-      if(i.getFlight2ID() == -1)
-        ps.setNull(6, java.sql.Types.INTEGER);
-      else
-        ps.setInt(6, i.getFlight2ID());
-
-      int result = ps.executeUpdate();
-      
-      if(result == 0) {
-        conn.rollback();
-        return "Booking failed\n";
-      } 
-      conn.commit();
-      return "Booked flight(s), reservation ID: " + resId + "\n";
-    } catch (SQLException e) {
-        try {
-          conn.rollback();
-          if (isDeadlock(e)) {
-            return transaction_book(itineraryId);
+
+        // take a seat on each flight, in fid order so that two bookings sharing flights cannot
+        // deadlock; fails if a flight is already full
+        List<Integer> fids = i.getFlightIDs();
+        List<Integer> lockOrder = new ArrayList<>(fids);
+        Collections.sort(lockOrder);
+        for(int fid : lockOrder) {
+          if(!seats.reserveSeat(fid)) {
+            conn.rollback();
+            return "Booking failed\n";
           }
-        } catch (SQLException r) {
-          r.printStackTrace();
         }
-        e.printStackTrace();
-        return "Booking failed\n";
+
+        // book the itinerary under the next reservation ID
+        int resId = reservationIds.insertReservation(loggedInUser, i.getDay(), fids);
+        conn.commit();
+        noteWrite();
+        EventJournal journal = EventJournal.getInstance();
+        if (journal != null) {
+          journal.recordBook(resId, loggedInUser, i.getDay(), fids);
+        }
+        return "Booked flight(s), reservation ID: " + resId + "\n";
+      }, "Booking failed\n");
+    } catch (SQLException e) {
+      e.printStackTrace();
+      return "Booking failed\n";
+    } finally {
+      endTransaction();
     }
   }
 
@@ -373,225 +578,194 @@ public class Query extends QueryAbstract {
     if(loggedInUser == null) {
       return "Cannot pay, not logged in\n";
     }
-    try {
-      
-      conn.setAutoCommit(false);
-
-      // check if reservation is not found, not under the logged-in user's name, or is already paid
-      if(!foundUnpaidResGivenID((reservationId))) {
-        conn.rollback();
-        return "Cannot find unpaid reservation " + reservationId + " under user: " + loggedInUser + "\n";
-      }
-
-      // check if user doesn't have enough money in acct
-      String resPriceQuery = "SELECT sum(f.price) AS totalPrice FROM Flights f, reservations_ishaj83 r WHERE f.fid = r.flightID1 OR f.fid = r.flightID2";
-      PreparedStatement ps = conn.prepareStatement(resPriceQuery);
-      ResultSet rs = ps.executeQuery();
-      if(!rs.next()) {
-        conn.rollback();
-        return "Failed to pay for reservation " + reservationId + "\n";
-      }
-      int resPrice = rs.getInt("totalPrice");
-      rs.close();
-      int balance = getUserBalance();
-      conn.rollback();
-      if(balance < resPrice) {
-        return "User has only " + balance + " in account but itinerary costs " + resPrice + "\n";
-      }
-
-      // update reservation paid column
-      String updatePaidQuery = "UPDATE reservations_ishaj83 SET paid = true WHERE reservationID = ?";
-      ps = conn.prepareStatement(updatePaidQuery);
-      ps.clearParameters();
-      ps.setInt(1, reservationId);
-      ps.executeUpdate();
-      
-      // update user balance
-      String updateBalanceQuery = "UPDATE users_ishaj83 SET balance = ? WHERE username = ?";
-      ps = conn.prepareStatement(updateBalanceQuery);
-      ps.clearParameters();
-      ps.setInt(1, balance-resPrice);
-      ps.setString(2, loggedInUser);
-      ps.executeUpdate();
-
-      conn.commit();
-      return "Paid reservation: " + reservationId + " remaining balance: " + getUserBalance() + "\n";
-    } catch (SQLException e) {
-      try {
-        conn.rollback();
-        if (isDeadlock(e)) {
-          return transaction_pay(reservationId);
+    // one atomic auto-committed statement: price the reservation, debit the balance and mark it paid
+    return runner.run("pay", conn, () -> {
+      payReservationStmt.clearParameters();
+      payReservationStmt.setInt(1, reservationId);
+      payReservationStmt.setString(2, loggedInUser);
+      payReservationStmt.setString(3, loggedInUser);
+      payReservationStmt.setInt(4, reservationId);
+      payReservationStmt.setString(5, loggedInUser);
+
+      try (ResultSet rs = CommandMetrics.executeQuery(payReservationStmt)) {
+        // check if reservation is not found, not under the logged-in user's name, or is already paid
+        if(!CommandMetrics.next(rs)) {
+          return "Cannot find unpaid reservation " + reservationId + " under user: " + loggedInUser + "\n";
+        }
+        int resPrice = rs.getInt("price");
+        int newBalance = rs.getInt("new_balance");
+        // check if user doesn't have enough money in acct
+        if(rs.wasNull()) {
+          return "User has only " + rs.getInt("old_balance") + " in account but itinerary costs " + resPrice + "\n";
         }
-      } catch (SQLException r) {
-        r.printStackTrace();
+        noteWrite();
+        return "Paid reservation: " + reservationId + " remaining balance: " + newBalance + "\n";
       }
-      e.printStackTrace();
-      return "Failed to pay for reservation " + reservationId + "\n";
-    }
-
+    }, "Failed to pay for reservation " + reservationId + "\n");
   }
 
   /* See QueryAbstract.java for javadoc */
   public String transaction_reservations() {
-    StringBuffer sb = new StringBuffer();
+    // check if user is logged in
+    if(loggedInUser == null) {
+      return "Cannot view reservations, not logged in\n";
+    }
+    // a read-only READ COMMITTED snapshot; takes no locks
     try {
-      // check if user is logged in
-      if(loggedInUser == null) {
-        return "Cannot view reservations, not logged in\n";
-      }
-      conn.setAutoCommit(false);
-
-      String query = "SELECT * FROM reservations_ishaj83 WHERE username = ?";
-      PreparedStatement ps = conn.prepareStatement(query);
-      ps.clearParameters();
-      ps.setString(1, loggedInUser);
-      ResultSet rs = ps.executeQuery();
-      
-      int count = 0;
-      while(rs.next()) {
-        boolean paid = rs.getBoolean("paid");
-        int resId = rs.getInt("reservationID");
-        int f1Id = rs.getInt("flightID1");
-        int f2Id = rs.getInt("flightID2");
-        Flight f1 = createFlight(f1Id);
-        Flight f2 = null;
-        if(f2Id != 0)
-          f2 = createFlight(f2Id);
-        sb.append("Reservation " + resId + " paid: " + paid + ":\n" + f1.toString() + "\n");
-        if(f2 != null) {
-          sb.append(f2.toString() + "\n");
-        }
-        count++;
-      }
-      rs.close();
-      if(count == 0) {
-        sb.append("No reservations found\n");
-      }
-      conn.commit();
-      return sb.toString();
-    // } catch(SQLException e) {
-    //   e.printStackTrace();
-    //   return "Failed to retrieve reservations\n";
-    // }
+      beginTransaction(Connection.TRANSACTION_READ_COMMITTED, true);
+      return runner.run("reservations", conn, () -> {
+        String listing = read(this::listReservations);
+        conn.commit();
+        return listing;
+      }, "Failed to retrieve reservations\n");
     } catch (SQLException e) {
-        try {
-            conn.rollback(); // Rollback transaction on error
-            if (isDeadlock(e)) {
-                return transaction_reservations(); // Retry on deadlock
-            }
-        } catch (SQLException ex) {
-            ex.printStackTrace();
-        }
-        e.printStackTrace();
-        return "Failed to retrieve reservations\n";
+      e.printStackTrace();
+      return "Failed to retrieve reservations\n";
     } finally {
-        try {
-            conn.setAutoCommit(true); // Restore default behavior
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
+      endTransaction();
     }
   }
 
-  private Flight createFlight(int fid) {
-    try {
-      Flight f = null;
-      
-      String query = "SELECT * FROM Flights WHERE fid = ?";
-      
-      PreparedStatement ps = conn.prepareStatement(query);
-      ps.clearParameters();
-      ps.setInt(1, fid);
-      ResultSet rs = ps.executeQuery();
-      
-      if (rs.next()) {
-        int result_dayOfMonth = rs.getInt("day_of_month");
-        String result_carrierId = rs.getString("carrier_id");
-        String result_flightNum = rs.getString("flight_num");
-        String result_originCity = rs.getString("origin_city");
-        String result_destCity = rs.getString("dest_city");
-        int result_time = rs.getInt("actual_time");
-        int result_capacity = rs.getInt("capacity");
-        int result_price = rs.getInt("price");
-        int result_fid = rs.getInt("fid");
-        f = new Flight(result_fid, result_dayOfMonth, result_carrierId, result_flightNum, result_originCity, result_destCity, result_time, result_capacity, result_price);
+  /**
+   * Utility function to list the logged-in user's reservations
+   *
+   * @param s statements of the primary or replica connection to read from
+   */
+  private String listReservations(StatementRegistry s) throws SQLException {
+    StringBuffer sb = new StringBuffer();
+    PreparedStatement ps = s.get(USER_RESERVATIONS_SQL);
+    ps.clearParameters();
+    ps.setString(1, loggedInUser);
+    long generation = cacheGeneration(s);
+    ResultSet rs = CommandMetrics.executeQuery(ps);
+
+    int count = 0;
+    while(CommandMetrics.next(rs)) {
+      boolean paid = rs.getBoolean("paid");
+      int resId = rs.getInt("reservationID");
+      Flight f1 = readFlight(rs, "f1_", generation);
+      Flight f2 = null;
+      if(rs.getInt("f2_fid") != 0)
+        f2 = readFlight(rs, "f2_", generation);
+      sb.append("Reservation " + resId + " paid: " + paid + ":\n" + f1.toString() + "\n");
+      if(f2 != null) {
+        sb.append(f2.toString() + "\n");
       }
-      rs.close();
-      return f;
-    } catch(SQLException e) {
-      e.printStackTrace();
-      return null;
+      // legs after the second, of itineraries with more stops
+      String moreFids = rs.getString("more_fids");
+      if(moreFids != null) {
+        for(String fid : moreFids.split(",")) {
+          sb.append(createFlight(s, Integer.parseInt(fid)).toString() + "\n");
+        }
+      }
+      count++;
     }
+    rs.close();
+    if(count == 0) {
+      sb.append("No reservations found\n");
+    }
+    return sb.toString();
   }
+
   /**
-   * Utility function to get a user's balance
+   * A read-only query that can run on either the primary or the replica
    */
-  private int getUserBalance() {
-    try {
-      checkBalanceStmt.clearParameters();
-      checkBalanceStmt.setString(1, loggedInUser);
-
-      ResultSet results = checkBalanceStmt.executeQuery();
-      results.next();
-      int balance = results.getInt("balance");
-      results.close();
+  private interface Read<T> {
+    T run(StatementRegistry s) throws SQLException;
+  }
 
-      return balance;
-    } catch(SQLException e) {
-      e.printStackTrace();
-      return 0;
+  /**
+   * Utility function to run a read on the replica when it is healthy and has caught up with this
+   * session's writes, and on the primary otherwise. A replica read that fails for any reason but a
+   * retryable abort is repeated on the primary.
+   */
+  private <T> T read(Read<T> work) throws SQLException {
+    ReplicaRouter router = replicaRouter;
+    Connection replica = router == null ? null : router.borrow(lastWriteLsn);
+    if (replica != null) {
+      try {
+        return work.run(((ConnectionPool.Leased) replica).getStatementRegistry());
+      } catch (SQLException e) {
+        if (TransactionRunner.isRetryable(e)) {
+          throw e;
+        }
+        router.markFailed();
+      } finally {
+        replica.close();
+      }
     }
-    
+    return work.run(statements);
   }
 
   /**
-   * Utility function to determine whether an UNPAID reservation already exists for a user given the reservation id
+   * Utility function to record where this session's last write is in the primary's WAL, so
+   * its later reads wait for the replica to replay it. Called once the write has committed.
    */
-  private boolean foundUnpaidResGivenID(int reservationID) {
+  private void noteWrite() {
+    if (replicaRouter == null) {
+      return;
+    }
     try {
-      checkResIdStmt.clearParameters();
-      checkResIdStmt.setInt(1, reservationID);
-      checkResIdStmt.setString(2, loggedInUser);
-
-      ResultSet results = checkResIdStmt.executeQuery();
-      results.next();
-      int num = results.getInt("num");
-      results.close();
-
-      return num>0;
-    } catch(SQLException e) {
+      lastWriteLsn = ReplicaRouter.currentLsn(statements);
+    } catch (SQLException e) {
+      // the write is committed; read from the primary rather than fail it
+      lastWriteLsn = Long.MAX_VALUE;
       e.printStackTrace();
-      return false;
     }
-    
   }
+
   /**
-   * Example utility function that uses prepared statements
+   * Utility function to get a flight by fid, from the shared flight cache if possible
    */
-  private int checkFlightCapacity(int fid) throws SQLException {
-    flightCapacityStmt.clearParameters();
-    flightCapacityStmt.setInt(1, fid);
-
-    ResultSet results = flightCapacityStmt.executeQuery();
-    results.next();
-    int capacity = results.getInt("capacity");
-    results.close();
-
-    return capacity;
+  private Flight createFlight(StatementRegistry s, int fid) throws SQLException {
+    Flight f = flightCache.get(fid);
+    if (f != null) {
+      return f;
+    }
+    PreparedStatement ps = s.get(FLIGHT_SQL);
+    ps.clearParameters();
+    ps.setInt(1, fid);
+    long generation = cacheGeneration(s);
+    try (ResultSet rs = CommandMetrics.executeQuery(ps)) {
+      if (!CommandMetrics.next(rs)) {
+        throw new SQLException("Reserved flight " + fid + " does not exist");
+      }
+      return readFlight(rs, "", generation);
+    }
   }
 
   /**
-   * Utility function to determine the next reservation id
+   * Utility function to get the flight cache generation for rows about to be read through the
+   * given statements. Rows from the replica may be older than the cache's invalidations, so they
+   * get a generation that never matches.
    */
-  private int getNextResID() throws SQLException {
-    nextReservationIDStmt.clearParameters();
+  private long cacheGeneration(StatementRegistry s) {
+    return s == statements ? flightCache.getGeneration() : -1;
+  }
 
-    ResultSet results = nextReservationIDStmt.executeQuery();
-    results.next();
-    int num = results.getInt("num");
-    results.close();
+  /**
+   * Utility function to build a flight from the current row, whose Flights columns are named
+   * with the given prefix. Reuses the shared cached instance when there is one.
+   *
+   * @param generation the flight cache generation from before the row was read
+   */
+  private Flight readFlight(ResultSet rs, String prefix, long generation) throws SQLException {
+    Flight f = flightCache.get(rs.getInt(prefix + "fid"));
+    if (f != null) {
+      return f;
+    }
+    return flightCache.intern(newFlight(rs, prefix), generation);
+  }
 
-    return num+1;
+  /**
+   * Utility function to build a flight from the current row without caching it
+   */
+  private static Flight newFlight(ResultSet rs, String prefix) throws SQLException {
+    return new Flight(rs.getInt(prefix + "fid"), rs.getInt(prefix + "day_of_month"),
+                      rs.getString(prefix + "carrier_id"), rs.getString(prefix + "flight_num"),
+                      rs.getString(prefix + "origin_city"), rs.getString(prefix + "dest_city"),
+                      rs.getInt(prefix + "actual_time"), rs.getInt(prefix + "capacity"),
+                      rs.getInt(prefix + "price"));
   }
 
   /**
@@ -602,8 +776,8 @@ public class Query extends QueryAbstract {
     reservationSameDayStmt.setInt(1, day_of_month);
     reservationSameDayStmt.setString(2, loggedInUser);
 
-    ResultSet results = reservationSameDayStmt.executeQuery();
-    results.next();
+    ResultSet results = CommandMetrics.executeQuery(reservationSameDayStmt);
+    CommandMetrics.next(results);
     int num = results.getInt("num");
     results.close();
 
@@ -611,104 +785,165 @@ public class Query extends QueryAbstract {
   }
 
   /**
-   * Utility function to determine the current number of seats booked in a flight so far
+   * Utility function to lock the logged-in user's row until the end of the transaction
    */
-  private int currFlightCapacity(int day_of_month, String flight, int fid) throws SQLException {
-    ResultSet results = null;
-    if(flight.equals("flightID1")) {
-      flight1CapStmt.clearParameters();
-      flight1CapStmt.setInt(1, day_of_month);
-      flight1CapStmt.setInt(2, fid);
-      results = flight1CapStmt.executeQuery();
-    } else if(flight.equals("flightID2")) {
-      flight2CapStmt.clearParameters();
-      flight2CapStmt.setInt(1, day_of_month);
-      flight2CapStmt.setInt(2, fid);
-      results = flight2CapStmt.executeQuery();
-    }
-    if(results == null) return -1;
-    results.next();
-    int count = results.getInt("num");
-    results.close();
+  private void lockUser() throws SQLException {
+    lockUserStmt.clearParameters();
+    lockUserStmt.setString(1, loggedInUser);
+    CommandMetrics.executeQuery(lockUserStmt).close();
+  }
 
-    return count;
+  /**
+   * Utility function to start a transaction with the given isolation level. Read-only
+   * transactions are started with BEGIN READ ONLY, which costs no extra round trip.
+   */
+  private void beginTransaction(int isolation, boolean readOnly) throws SQLException {
+    if (isolation != DBConnUtils.DEFAULT_ISOLATION) {
+      conn.setTransactionIsolation(isolation);
+      isolationChanged = true;
+    }
+    conn.setReadOnly(readOnly);
+    conn.setAutoCommit(false);
+  }
+
+  /**
+   * Utility function to return the connection to auto-commit mode and the default isolation
+   * level once a transaction is over
+   */
+  private void endTransaction() {
+    try {
+      conn.setAutoCommit(true);
+      conn.setReadOnly(false);
+      if (isolationChanged) {
+        conn.setTransactionIsolation(DBConnUtils.DEFAULT_ISOLATION);
+        isolationChanged = false;
+      }
+    } catch (SQLException e) {
+      e.printStackTrace();
+    }
   }
 
   /**
-   * Utility function to determine whether an error was caused by a deadlock
+   * Direct and one-stop candidates fetched for a search, ranked for display: by total time, direct
+   * before one-stop, then by fids. Each candidate is its legs. Shared through SearchCache, so it
+   * must not be modified once built.
    */
-  private static boolean isDeadlock(SQLException e) {
-    return "40001".equals(e.getSQLState()) || "40P01".equals(e.getSQLState());
+  static class SearchResult {
+    private final int requested;
+    private final boolean complete;
+    final List<Flight[]> ranked;
+    final int directCount;
+
+    /**
+     * @param direct  direct flights, by time then fid
+     * @param oneStop one-stop itineraries, by total time then fids
+     */
+    SearchResult(int requested, boolean directFlight, List<Flight> direct, List<Flight[]> oneStop) {
+      this(requested, directFlight, merge(direct, oneStop));
+    }
+
+    SearchResult(int requested, boolean directFlight, List<Flight[]> ranked) {
+      this.requested = requested;
+      this.ranked = Collections.unmodifiableList(ranked);
+      int directs = 0;
+      for (Flight[] legs : ranked) {
+        if (legs.length == 1) {
+          directs++;
+        }
+      }
+      this.directCount = directs;
+      // Fewer rows than were asked for means every matching flight has been fetched
+      this.complete = directs < requested
+        && (directFlight || ranked.size() - directs < requested - directs);
+    }
+
+    private static List<Flight[]> merge(List<Flight> direct, List<Flight[]> oneStop) {
+      List<Flight[]> ranked = new ArrayList<>(direct.size() + oneStop.size());
+      int d = 0;
+      int o = 0;
+      while (d < direct.size() || o < oneStop.size()) {
+        if (o == oneStop.size() || (d < direct.size()
+            && direct.get(d).time <= oneStop.get(o)[0].time + oneStop.get(o)[1].time)) {
+          ranked.add(new Flight[] {direct.get(d++)});
+        } else {
+          ranked.add(oneStop.get(o++));
+        }
+      }
+      return ranked;
+    }
+
+    int getRequested() {
+      return requested;
+    }
+
+    /**
+     * Whether a search for {@code numberOfItineraries} can be answered from these candidates
+     */
+    boolean canAnswer(int numberOfItineraries) {
+      return complete || numberOfItineraries <= requested;
+    }
   }
 
   class Itinerary {
     int id;
-    Flight f1;
-    Flight f2;
-    String origin;
-    String dest;
-    String stopover;
+    List<Flight> legs;
     int totalTime;
 
-    public Itinerary(int id, Flight f1, Flight f2, String origin, String dest, String stopover, int totalTime) {
+    public Itinerary(int id, Flight... legs) {
       this.id = id;
-      this.f1 = f1;
-      this.f2 = f2;
-      this.origin = origin;
-      this.dest = dest;
-      this.stopover = stopover;
-      this.totalTime = totalTime;
-    }
-
-    private void setId(int id) {
-      this.id = id;
-    }
-
-    private int getFlight1ID() {
-      return f1.fid;
+      this.legs = Collections.unmodifiableList(Arrays.asList(legs));
+      for (Flight f : legs) {
+        this.totalTime += f.time;
+      }
     }
 
-    private int getFlight2ID() {
-      if(f2 == null) return -1;
-      return f2.fid;
+    private List<Integer> getFlightIDs() {
+      List<Integer> fids = new ArrayList<>(legs.size());
+      for (Flight f : legs) {
+        fids.add(f.fid);
+      }
+      return fids;
     }
 
     private int getDay() {
-      return f1.dayOfMonth;
+      return legs.get(0).dayOfMonth;
     }
 
     private int getPrice() {
-      if(f2 == null)
-        return f1.price;
-      else
-        return f1.price + f2.price;
+      int price = 0;
+      for (Flight f : legs) {
+        price += f.price;
+      }
+      return price;
     }
 
     @Override
     public String toString() {
-      int numFlights = f1 != null && f2 != null ? 2 : 1;
-      String str = "Itinerary " + this.id + ": " + numFlights + " flight(s), " + totalTime + " minutes";
-      if(numFlights==1)
-        return str + "\n" + f1.toString();
-      return str + "\n" + f1.toString() + "\n" + f2.toString();
+      StringBuilder str = new StringBuilder("Itinerary " + this.id + ": " + legs.size() + " flight(s), "
+                                            + totalTime + " minutes");
+      for (Flight f : legs) {
+        str.append("\n").append(f.toString());
+      }
+      return str.toString();
     }
   }
 
   /**
-   * A class to store information about a single flight
+   * A class to store information about a single flight. Flights are immutable, so one instance
+   * can be shared by every session through FlightCache.
    *
    * TODO(hctang): move this into QueryAbstract
    */
-  class Flight {
-    public int fid;
-    public int dayOfMonth;
-    public String carrierId;
-    public String flightNum;
-    public String originCity;
-    public String destCity;
-    public int time;
-    public int capacity;
-    public int price;
+  static class Flight {
+    public final int fid;
+    public final int dayOfMonth;
+    public final String carrierId;
+    public final String flightNum;
+    public final String originCity;
+    public final String destCity;
+    public final int time;
+    public final int capacity;
+    public final int price;
 
     Flight(int id, int day, String carrier, String fnum, String origin, String dest, int tm,
            int cap, int pri) {
@@ -2,33 +2,139 @@ package flightapp;
 
 import java.io.IOException;
 import java.sql.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
 
 public abstract class QueryAbstract {
-  // DB Connection
+  // DB Connection, borrowed from the shared connection pool
   protected Connection conn;
 
-  // For checking for dangling transactions
+  // Prepared statements of the borrowed connection, reused across leases
+  protected StatementRegistry statements;
+
+  // For verifying the locally tracked transaction state against the server, on a sample of
+  // commands (flightapp.txn_check_sample_rate, 0 to 1)
+  private static final double TRAN_CHECK_SAMPLE_RATE = Double.parseDouble(
+      DBConnUtils.getProperty("flightapp.txn_check_sample_rate", "0"));
   private static final String TRANCOUNT_SQL = "SELECT COUNT(*) AS tran_count FROM pg_stat_activity " +
     "WHERE state = 'active' AND backend_xid IS NOT NULL AND pid = pg_backend_pid()";
   private PreparedStatement tranCountStatement;
 
+  // If true, a connection is borrowed for each command rather than held for the whole session
+  private final boolean connectionPerCommand;
+
   protected QueryAbstract() throws SQLException, IOException {
-    this.conn = DBConnUtils.openConnection();
-    tranCountStatement = conn.prepareStatement(TRANCOUNT_SQL);
+    this(Boolean.parseBoolean(
+        DBConnUtils.getProperty("flightapp.pool.connection_per_command", "false")));
+  }
+
+  /**
+   * @param connectionPerCommand if true, borrow a pooled connection for each command instead of
+   *                             holding one for the lifetime of this object
+   */
+  protected QueryAbstract(boolean connectionPerCommand) throws SQLException, IOException {
+    this.connectionPerCommand = connectionPerCommand;
+    if (!connectionPerCommand) {
+      leaseConnection();
+    }
+  }
+
+  private void leaseConnection() throws SQLException {
+    conn = DBConnUtils.getConnectionPool().getConnection();
+    statements = ((ConnectionPool.Leased) conn).getStatementRegistry();
+    tranCountStatement = TRAN_CHECK_SAMPLE_RATE > 0 ? statements.get(TRANCOUNT_SQL) : null;
   }
 
   /**
-   * Get underlying connection
+   * Get underlying connection. When connections are borrowed per command, this is null between
+   * commands.
    */
   public Connection getConnection() {
     return conn;
   }
 
   /**
-   * Closes the application-to-database connection
+   * Closes the application-to-database connection. Its prepared statements stay with the pooled
+   * connection for the next session; any other statement left open is closed and counted as
+   * leaked by the pool.
    */
   public void closeConnection() throws SQLException {
-    conn.close();
+    if (conn != null) {
+      conn.close();
+      conn = null;
+      statements = null;
+    }
+  }
+
+  /**
+   * Get the prepared statements from {@code statements}. Called each time a new connection is
+   * borrowed for a command.
+   */
+  protected abstract void prepareStatements() throws SQLException;
+
+  /**
+   * Borrow a connection for the next command, if one isn't already held
+   */
+  private void beginCommand() {
+    if (conn != null) {
+      return;
+    }
+    try {
+      leaseConnection();
+      prepareStatements();
+    } catch (SQLException e) {
+      if (conn != null) {
+        try {
+          conn.close();
+        } catch (SQLException ignored) {
+          // the pool discards connections it cannot reset
+        }
+        conn = null;
+        statements = null;
+      }
+      throw new IllegalStateException("Database error", e);
+    }
+  }
+
+  /**
+   * Run slow work that doesn't touch the database, such as password hashing. The connection goes
+   * back to the pool while the work runs, whether it is held per command or for the session, and
+   * a connection is borrowed again afterwards. Must not be called inside a transaction.
+   */
+  protected <T> T withoutConnection(Supplier<T> work) {
+    if (conn == null) {
+      return work.get();
+    }
+    try {
+      closeConnection();
+    } catch (SQLException e) {
+      conn = null;
+      statements = null;
+    }
+    try {
+      return work.get();
+    } finally {
+      beginCommand();
+    }
+  }
+
+  /**
+   * Check the command left no transaction open, then return a per-command connection to the pool
+   * and record the command's metrics
+   */
+  private void endCommand() {
+    try {
+      checkDanglingTransaction();
+    } finally {
+      if (connectionPerCommand) {
+        try {
+          closeConnection();
+        } catch (SQLException e) {
+          conn = null;
+        }
+      }
+      CommandMetrics.end();
+    }
   }
 
   /**
@@ -37,12 +143,13 @@ public abstract class QueryAbstract {
    * WARNING! Do not drop any tables and do not clear the flights table.
    */
   public final void clearTablesWrap() {
+    beginCommand();
     try {
       clearTables();
     } catch (SQLException e) {
       throw new RuntimeException(e);
     } finally {
-      checkDanglingTransaction();
+      endCommand();
     }
   }
 
@@ -58,10 +165,12 @@ public abstract class QueryAbstract {
    *         other errors, return "Login failed\n". Otherwise, return "Logged in as [username]\n".
    */
   public final String login(String username, String password) {
+    CommandMetrics.begin(CommandMetrics.Command.LOGIN);
+    beginCommand();
     try {
       return transaction_login(username, password);
     } finally {
-      checkDanglingTransaction();
+      endCommand();
     }
   }
 
@@ -78,10 +187,12 @@ public abstract class QueryAbstract {
    * @return either "Created user {@code username}\n" or "Failed to create user\n" if failed.
    */
   public final String create(String username, String password, int initAmount) {
+    CommandMetrics.begin(CommandMetrics.Command.CREATE);
+    beginCommand();
     try {
       return transaction_createCustomer(username, password, initAmount);
     } finally {
-      checkDanglingTransaction();
+      endCommand();
     }
   }
 
@@ -119,11 +230,13 @@ public abstract class QueryAbstract {
    */
   public final String search(String originCity, String destinationCity, boolean directFlight,
                              int dayOfMonth, int numberOfItineraries) {
+    CommandMetrics.begin(CommandMetrics.Command.SEARCH);
+    beginCommand();
     try {
       return transaction_search(originCity, destinationCity, directFlight,
                                 dayOfMonth, numberOfItineraries);
     } finally {
-      checkDanglingTransaction();
+      endCommand();
     }
   }
 
@@ -131,6 +244,35 @@ public abstract class QueryAbstract {
                                             boolean directFlight, int dayOfMonth,
                                             int numberOfItineraries);
 
+  /**
+   * Searches for itineraries with up to {@code maxStops} stops, all on the given day of the month.
+   *
+   * With 0 or 1 stops this is the same as {@link #search(String, String, boolean, int, int)}
+   * with {@code directFlight} true or false. With more stops, the itineraries with the least
+   * total flight time are returned, whatever their number of flights, ties broken by the fids of
+   * their flights in order. An itinerary never visits a city twice. The search stops after a
+   * time budget and then returns the fastest itineraries found so far.
+   *
+   * @param maxStops maximum number of stopovers, must be non-negative
+   *
+   * @return the same responses as {@link #search(String, String, boolean, int, int)}
+   */
+  public final String search(String originCity, String destinationCity, int dayOfMonth,
+                             int numberOfItineraries, int maxStops) {
+    CommandMetrics.begin(CommandMetrics.Command.SEARCH);
+    beginCommand();
+    try {
+      return transaction_search(originCity, destinationCity, dayOfMonth, numberOfItineraries,
+                                maxStops);
+    } finally {
+      endCommand();
+    }
+  }
+
+  public abstract String transaction_search(String originCity, String destinationCity,
+                                            int dayOfMonth, int numberOfItineraries,
+                                            int maxStops);
+
   /**
    * Reserves (but doesn't pay for) an itinerary generated from a previous search.
    *
@@ -152,10 +294,12 @@ public abstract class QueryAbstract {
    * @see #search()
    */
   public final String book(int itineraryId) {
+    CommandMetrics.begin(CommandMetrics.Command.BOOK);
+    beginCommand();
     try {
       return transaction_book(itineraryId);
     } finally {
-      checkDanglingTransaction();
+      endCommand();
     }
   }
 
@@ -180,10 +324,12 @@ public abstract class QueryAbstract {
    * @see #book()
    */
   public final String pay(int reservationId) {
+    CommandMetrics.begin(CommandMetrics.Command.PAY);
+    beginCommand();
     try {
       return transaction_pay(reservationId);
     } finally {
-      checkDanglingTransaction();
+      endCommand();
     }
   }
 
@@ -209,10 +355,12 @@ public abstract class QueryAbstract {
    * @see Query.Flight#toString()
    */
   public final String reservations() {
+    CommandMetrics.begin(CommandMetrics.Command.RESERVATIONS);
+    beginCommand();
     try {
       return transaction_reservations();
     } finally {
-      checkDanglingTransaction();
+      endCommand();
     }
   }
 
@@ -221,13 +369,21 @@ public abstract class QueryAbstract {
   /**
    * Throw IllegalStateException if transaction not completely complete, rollback.
    *
+   * The connection's transaction state is tracked locally, so this normally costs no round trip.
+   * On a sample of commands it is also checked against pg_stat_activity.
    */
   protected void checkDanglingTransaction() throws IllegalStateException {
-    
+    if (statements == null) {
+      // no connection is held, eg borrowing one again after withoutConnection failed
+      return;
+    }
+    TransactionTracker tracker = statements.getTransactionTracker();
     try {
-      try (ResultSet rs = tranCountStatement.executeQuery()) {
-        rs.next();
-        int count = rs.getInt("tran_count");
+      try {
+        int count = tracker.isOpen() ? 1 : 0;
+        if (tranCountStatement != null && ThreadLocalRandom.current().nextDouble() < TRAN_CHECK_SAMPLE_RATE) {
+          count = Math.max(count, verifyTransactionCount(tracker.isOpen()));
+        }
         if (count > 0) {
           throw new IllegalStateException(
               "\nTransaction not fully commited/rolledback. Number of transactions currently"
@@ -237,11 +393,28 @@ public abstract class QueryAbstract {
               + " the error string.\n");
         }
       } finally {
-        conn.setAutoCommit(true);
+        if (!tracker.isAutoCommit()) {
+          conn.setAutoCommit(true);
+        }
       }
     } catch (SQLException e) {
       throw new IllegalStateException("Database error", e);
     }
-    
+  }
+
+  /**
+   * Ask the server how many transactions this connection has in process, reporting any
+   * disagreement with the locally tracked state
+   */
+  private int verifyTransactionCount(boolean trackedOpen) throws SQLException {
+    try (ResultSet rs = CommandMetrics.executeQuery(tranCountStatement)) {
+      CommandMetrics.next(rs);
+      int count = rs.getInt("tran_count");
+      if ((count > 0) != trackedOpen) {
+        System.err.println("Transaction tracking disagrees with the server: tracked open = "
+                           + trackedOpen + ", server transactions = " + count);
+      }
+      return count;
+    }
   }
 }
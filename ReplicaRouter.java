@@ -0,0 +1,181 @@
+package flightapp;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether a read-only command may run on the read replica configured with the
+ * flightapp.replica.* settings in dbconn.properties, and hands out replica connections.
+ *
+ * Reads fall back to the primary while the replica is unreachable or lags by more than
+ * flightapp.replica.max_lag_ms. A session that has written reads from the replica only once the
+ * replica has replayed the session's last write (compared by WAL position).
+ *
+ * The replica must be a streaming standby of the primary. A database that is not in recovery
+ * never receives the primary's writes, so it is treated as unavailable and every read goes to
+ * the primary.
+ */
+public class ReplicaRouter {
+  // Replay position and lag of a standby; lag is 0 when it has replayed all it has received
+  private static final String REPLICA_STATUS_SQL = "SELECT pg_is_in_recovery() AS standby, "
+    + "pg_last_wal_replay_lsn()::text AS replay_lsn, "
+    + "CASE WHEN pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0 "
+    + "ELSE coalesce(extract(epoch FROM now() - pg_last_xact_replay_timestamp()) * 1000, 0) "
+    + "END AS lag_ms";
+
+  private static final String CURRENT_LSN_SQL = "SELECT pg_current_wal_lsn()::text AS lsn";
+
+
+  private final ConnectionPool replicas;
+  private final long maxLagMillis;
+  private final long statusCheckMillis;
+
+  // Last observed replica status
+  private volatile long checkedAt;
+  private volatile boolean available = true;
+  private volatile long replayLsn;
+  private volatile long lagMillis;
+
+  private final AtomicLong replicaReads = new AtomicLong();
+  private final AtomicLong primaryReads = new AtomicLong();
+
+  public ReplicaRouter(ConnectionPool replicas, long maxLagMillis, long statusCheckMillis) {
+    this.replicas = replicas;
+    this.maxLagMillis = maxLagMillis;
+    this.statusCheckMillis = statusCheckMillis;
+  }
+
+  /**
+   * Returns the shared router
+   *
+   * @return null if no replica is configured
+   */
+  public static ReplicaRouter getInstance() {
+    return Holder.INSTANCE;
+  }
+
+  private static ReplicaRouter create() {
+    ConnectionPool replicas = DBConnUtils.getReplicaPool();
+    if (replicas == null) {
+      return null;
+    }
+    return new ReplicaRouter(replicas,
+        Long.parseLong(DBConnUtils.getProperty("flightapp.replica.max_lag_ms", "1000")),
+        Long.parseLong(DBConnUtils.getProperty("flightapp.replica.status_check_ms", "500")));
+  }
+
+  /**
+   * Borrows a replica connection for a read, if the replica is healthy and has caught up with the
+   * session's writes. The caller closes it to give it back.
+   *
+   * @param sessionLsn WAL position of the session's last write, or 0 if it hasn't written
+   * @return null if the read should go to the primary
+   */
+  public Connection borrow(long sessionLsn) {
+    long now = System.currentTimeMillis();
+    if (!available && now - checkedAt < statusCheckMillis) {
+      primaryReads.incrementAndGet();
+      return null;
+    }
+
+    Connection replica = null;
+    try {
+      replica = replicas.getConnection();
+      if (now - checkedAt >= statusCheckMillis || sessionLsn > replayLsn) {
+        refreshStatus(replica);
+      }
+      if (available && lagMillis <= maxLagMillis && replayLsn >= sessionLsn) {
+        replicaReads.incrementAndGet();
+        return replica;
+      }
+    } catch (SQLException e) {
+      markFailed();
+    }
+    if (replica != null) {
+      try {
+        replica.close();
+      } catch (SQLException ignored) {
+        // the pool discards connections it cannot reset
+      }
+    }
+    primaryReads.incrementAndGet();
+    return null;
+  }
+
+  private void refreshStatus(Connection replica) throws SQLException {
+    PreparedStatement ps = ((ConnectionPool.Leased) replica).getStatementRegistry()
+        .get(REPLICA_STATUS_SQL);
+    boolean standby;
+    try (ResultSet rs = CommandMetrics.executeQuery(ps)) {
+      CommandMetrics.next(rs);
+      standby = rs.getBoolean("standby");
+      replayLsn = parseLsn(rs.getString("replay_lsn"));
+      lagMillis = (long) rs.getDouble("lag_ms");
+    }
+    if (!standby && available) {
+      System.err.println("Read replica is not a standby of the primary; reading from the primary");
+    }
+    available = standby;
+    checkedAt = System.currentTimeMillis();
+  }
+
+  /**
+   * Sends reads to the primary until the next status check, eg after a replica read failed
+   */
+  public void markFailed() {
+    available = false;
+    checkedAt = System.currentTimeMillis();
+  }
+
+  /**
+   * Returns the primary's current WAL position, to be recorded as the session's last write
+   *
+   * @param primary statements of a primary connection, after the write committed
+   */
+  public static long currentLsn(StatementRegistry primary) throws SQLException {
+    try (ResultSet rs = CommandMetrics.executeQuery(primary.get(CURRENT_LSN_SQL))) {
+      CommandMetrics.next(rs);
+      return parseLsn(rs.getString("lsn"));
+    }
+  }
+
+  /**
+   * Converts a pg_lsn in its text form, eg 16/B374D848, to a comparable number
+   */
+  static long parseLsn(String lsn) {
+    if (lsn == null) {
+      return 0;
+    }
+    int slash = lsn.indexOf('/');
+    return (Long.parseLong(lsn.substring(0, slash), 16) << 32)
+        | Long.parseLong(lsn.substring(slash + 1), 16);
+  }
+
+  public long getReplicaReads() {
+    return replicaReads.get();
+  }
+
+  /**
+   * Get the number of reads sent to the primary because the replica was unavailable or behind
+   */
+  public long getPrimaryReads() {
+    return primaryReads.get();
+  }
+
+  /**
+   * Get the replica lag seen by the last status check, in milliseconds
+   */
+  public long getLagMillis() {
+    return lagMillis;
+  }
+
+  /**
+   * Creates the shared router on first use, without locking later reads
+   */
+  private static class Holder {
+    static final ReplicaRouter INSTANCE = create();
+  }
+}
@@ -0,0 +1,183 @@
+package flightapp;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hands out reservation IDs from a database sequence instead of counting the reservations table.
+ *
+ * nextval() takes no row lock and never conflicts with another transaction, so concurrent
+ * bookings don't queue on a shared counter or abort each other under SERIALIZABLE. A value is
+ * not returned when its statement fails or its transaction rolls back, so IDs are drawn by the
+ * last statement of a booking, after every check that can fail it, and that statement inserts
+ * the reservations and their legs together. Only that statement or the commit failing leaves a
+ * gap.
+ *
+ * The sequence is seeded from the reservations table only when it is created; nothing ever sets
+ * it back, except clearTables, which empties the reservations table too.
+ *
+ * The first two flights of a reservation are stored in the reservations table; the flights of
+ * itineraries with more stops continue in a legs table, from leg 3 on.
+ */
+public class ReservationIdAllocator {
+  private static final String CREATE_LEGS_TABLE_SQL = "CREATE TABLE IF NOT EXISTS reservation_legs_ishaj83 "
+    + "(reservationID INT NOT NULL, leg INT NOT NULL, fid INT NOT NULL, PRIMARY KEY (reservationID, leg))";
+
+  private static final String CLEAR_LEGS_SQL = "DELETE FROM reservation_legs_ishaj83";
+
+  // Continues after the existing reservations. A process that loses the race to create the
+  // sequence leaves it as created.
+  private static final String CREATE_IDS_SQL = "DO $$ BEGIN "
+    + "CREATE SEQUENCE reservation_id_seq_ishaj83 AS INT; "
+    + "PERFORM setval('reservation_id_seq_ishaj83', coalesce(max(reservationID), 0) + 1, false) "
+    + "FROM reservations_ishaj83; "
+    + "EXCEPTION WHEN duplicate_table OR unique_violation THEN NULL; "
+    + "END $$";
+
+  private static final String RESET_IDS_SQL = "SELECT setval('reservation_id_seq_ishaj83', 1, false)";
+
+  // The last parameter holds the flights from leg 3 on, and may be empty
+  private static final String INSERT_RESERVATION_SQL = "WITH r AS (INSERT INTO reservations_ishaj83 "
+    + "VALUES (nextval('reservation_id_seq_ishaj83'), ?, ?, ?, ?, ?) RETURNING reservationID), "
+    + "l AS (INSERT INTO reservation_legs_ishaj83 SELECT r.reservationID, x.leg + 2, x.fid "
+    + "FROM r, unnest(?::int[]) WITH ORDINALITY AS x (fid, leg)) "
+    + "SELECT reservationID FROM r";
+
+  // Batched bookings: one ID per reservation, taken in list order, and every reservation and leg
+  // inserted in the same statement. Legs refer to their reservation by its position in the list.
+  private static final String INSERT_RESERVATIONS_SQL = "WITH v AS (SELECT "
+    + "nextval('reservation_id_seq_ishaj83')::int AS id, r.* "
+    + "FROM unnest(?::boolean[], ?::int[], ?::text[], ?::int[], ?::int[]) WITH ORDINALITY "
+    + "AS r (paid, day, username, fid1, fid2, ord)), "
+    + "res AS (INSERT INTO reservations_ishaj83 SELECT id, paid, day, username, fid1, fid2 FROM v), "
+    + "legs AS (INSERT INTO reservation_legs_ishaj83 SELECT v.id, l.leg, l.fid "
+    + "FROM v JOIN unnest(?::int[], ?::int[], ?::int[]) AS l (ord, leg, fid) ON l.ord = v.ord) "
+    + "SELECT id FROM v ORDER BY ord";
+
+  private static boolean initialized = false;
+
+  private final StatementRegistry statements;
+
+  private final PreparedStatement insertReservationStmt;
+
+  public ReservationIdAllocator(StatementRegistry statements) throws SQLException {
+    initialize(statements.getConnection());
+    this.statements = statements;
+    insertReservationStmt = statements.get(INSERT_RESERVATION_SQL);
+  }
+
+  /**
+   * Creates the sequence and legs table if needed, once per process.
+   */
+  private static synchronized void initialize(Connection conn) throws SQLException {
+    if (initialized) {
+      return;
+    }
+    try (Statement s = conn.createStatement()) {
+      s.execute(CREATE_IDS_SQL);
+      s.executeUpdate(CREATE_LEGS_TABLE_SQL);
+    }
+    initialized = true;
+  }
+
+  /**
+   * Restarts IDs at 1 and clears the legs table. Must be called whenever the reservations table
+   * is cleared.
+   */
+  public static void clear(Connection conn) throws SQLException {
+    try (Statement s = conn.createStatement()) {
+      s.execute(CREATE_IDS_SQL);
+      s.execute(RESET_IDS_SQL);
+      s.executeUpdate(CREATE_LEGS_TABLE_SQL);
+      s.executeUpdate(CLEAR_LEGS_SQL);
+    }
+  }
+
+  /**
+   * Inserts an unpaid reservation under the next reservation ID, as part of the caller's
+   * transaction.
+   *
+   * @param fids the itinerary's flights, in order
+   * @return the new reservation's ID
+   */
+  public int insertReservation(String username, int dayOfMonth, List<Integer> fids)
+    throws SQLException {
+    insertReservationStmt.clearParameters();
+    insertReservationStmt.setBoolean(1, false);
+    insertReservationStmt.setInt(2, dayOfMonth);
+    insertReservationStmt.setString(3, username);
+    insertReservationStmt.setInt(4, fids.get(0));
+    if (fids.size() < 2)
+      insertReservationStmt.setNull(5, java.sql.Types.INTEGER);
+    else
+      insertReservationStmt.setInt(5, fids.get(1));
+    Integer[] moreLegs = fids.subList(Math.min(2, fids.size()), fids.size()).toArray(new Integer[0]);
+    insertReservationStmt.setArray(6, statements.getConnection().createArrayOf("integer", moreLegs));
+
+    int reservationId;
+    try (ResultSet results = CommandMetrics.executeQuery(insertReservationStmt)) {
+      if (!CommandMetrics.next(results)) {
+        throw new SQLException("Reservation was not inserted");
+      }
+      reservationId = results.getInt("reservationID");
+    }
+    return reservationId;
+  }
+
+  /**
+   * Inserts several unpaid reservations under new reservation IDs, as part of the caller's
+   * transaction, in one statement however many reservations there are.
+   *
+   * @param itineraries each reservation's flights, in order
+   * @return each reservation's ID, in list order
+   */
+  public int[] insertReservations(List<String> usernames, List<Integer> days,
+                                  List<List<Integer>> itineraries) throws SQLException {
+    int n = usernames.size();
+    Boolean[] paid = new Boolean[n];
+    Integer[] first = new Integer[n];
+    Integer[] second = new Integer[n];
+    List<Integer> legOrds = new ArrayList<>();
+    List<Integer> legNumbers = new ArrayList<>();
+    List<Integer> legFids = new ArrayList<>();
+    for (int r = 0; r < n; r++) {
+      List<Integer> fids = itineraries.get(r);
+      paid[r] = false;
+      first[r] = fids.get(0);
+      second[r] = fids.size() < 2 ? null : fids.get(1);
+      for (int leg = 3; leg <= fids.size(); leg++) {
+        // WITH ORDINALITY counts from 1
+        legOrds.add(r + 1);
+        legNumbers.add(leg);
+        legFids.add(fids.get(leg - 1));
+      }
+    }
+
+    Connection conn = statements.getConnection();
+    PreparedStatement insert = statements.get(INSERT_RESERVATIONS_SQL);
+    insert.clearParameters();
+    insert.setArray(1, conn.createArrayOf("boolean", paid));
+    insert.setArray(2, conn.createArrayOf("integer", days.toArray(new Integer[0])));
+    insert.setArray(3, conn.createArrayOf("text", usernames.toArray(new String[0])));
+    insert.setArray(4, conn.createArrayOf("integer", first));
+    insert.setArray(5, conn.createArrayOf("integer", second));
+    insert.setArray(6, conn.createArrayOf("integer", legOrds.toArray(new Integer[0])));
+    insert.setArray(7, conn.createArrayOf("integer", legNumbers.toArray(new Integer[0])));
+    insert.setArray(8, conn.createArrayOf("integer", legFids.toArray(new Integer[0])));
+    int[] ids = new int[n];
+    try (ResultSet results = CommandMetrics.executeQuery(insert)) {
+      for (int r = 0; r < n; r++) {
+        if (!CommandMetrics.next(results)) {
+          throw new SQLException("Reservations were not inserted");
+        }
+        ids[r] = results.getInt("id");
+      }
+    }
+    return ids;
+  }
+}
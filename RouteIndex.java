@@ -0,0 +1,478 @@
+package flightapp;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * An in-memory, per-day index of the Flights table that answers direct and one-stop searches
+ * without running the Flights self-join.
+ *
+ * Each day is also a flight graph, with cities as nodes and that day's flights as edges, which
+ * answers searches for itineraries with more stops than a chain of self-joins could.
+ *
+ * The Flights table is loaded once per process into a FlightStore, or mapped from a
+ * FlightSnapshot, and shared by every session. Without a FlightChangeFeed it is treated as
+ * static. With one, price, capacity and cancellation changes are applied to the store in place
+ * and to the index by replacing it with a copy that shares every unchanged route list, and other
+ * changes reload it. The index holds store row numbers; flights are only materialized for the
+ * itineraries returned. Results use the same ordering and tie-breaks as the SQL searches in
+ * Query.
+ */
+public class RouteIndex {
+  // read without a lock; only the first load takes one
+  private static volatile RouteIndex instance;
+
+  private final FlightStore store;
+  // day of month -> origin city code -> destination city code -> store rows sorted by
+  // (actual_time, fid). Only non-canceled flights can ever appear in a search result.
+  private final Map<Integer, Map<Integer, Map<Integer, int[]>>> days;
+
+  RouteIndex(FlightStore store, Map<Integer, Map<Integer, Map<Integer, int[]>>> days) {
+    this.store = store;
+    this.days = days;
+  }
+
+  /**
+   * Returns the shared index, loading it from the Flights table on first use.
+   */
+  public static RouteIndex getInstance(Connection conn) throws SQLException {
+    RouteIndex index = instance;
+    return index != null ? index : load(conn);
+  }
+
+  private static synchronized RouteIndex load(Connection conn) throws SQLException {
+    if (instance == null) {
+      String snapshot = DBConnUtils.getProperty("flightapp.snapshot.path", null);
+      RouteIndex loaded;
+      long changes;
+      // a change applied while loading may have been missed by the load, so load again
+      do {
+        changes = FlightChangeFeed.getChangeCount();
+        loaded = snapshot == null ? build(FlightStore.load(conn))
+                                  : FlightSnapshot.loadOrBuild(Paths.get(snapshot), conn);
+      } while (changes != FlightChangeFeed.getChangeCount());
+      instance = loaded;
+    }
+    return instance;
+  }
+
+  /**
+   * Returns the shared index, or null if no search has loaded it yet
+   */
+  static RouteIndex current() {
+    return instance;
+  }
+
+  /**
+   * Replaces the shared index with an updated copy of it
+   */
+  static void replace(RouteIndex index) {
+    instance = index;
+  }
+
+  /**
+   * Reloads the shared index from the Flights table, if it was loaded. Searches keep using the
+   * old index until the new one is built.
+   */
+  static void reload(Connection conn) throws SQLException {
+    if (current() == null) {
+      return;
+    }
+    RouteIndex fresh = build(FlightStore.load(conn));
+    String snapshot = DBConnUtils.getProperty("flightapp.snapshot.path", null);
+    if (snapshot != null) {
+      try {
+        FlightSnapshot.write(Paths.get(snapshot), fresh);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+    replace(fresh);
+  }
+
+  /**
+   * Returns a copy of this index with a row added to or removed from its route list, which
+   * shares the store and every other route list. Only the row's canceled flag may have changed
+   * since the index was built.
+   */
+  RouteIndex withRow(int row, boolean listed) {
+    int day = store.day(row);
+    int origin = store.origin(row);
+    int dest = store.dest(row);
+    int[] rows = routes(day, origin).getOrDefault(dest, new int[0]);
+    int at = 0;
+    while (at < rows.length && compareRows(rows[at], row) < 0) {
+      at++;
+    }
+    boolean present = at < rows.length && rows[at] == row;
+    if (present == listed) {
+      return this;
+    }
+
+    int[] changed;
+    if (listed) {
+      changed = new int[rows.length + 1];
+      System.arraycopy(rows, 0, changed, 0, at);
+      changed[at] = row;
+      System.arraycopy(rows, at, changed, at + 1, rows.length - at);
+    } else {
+      changed = new int[rows.length - 1];
+      System.arraycopy(rows, 0, changed, 0, at);
+      System.arraycopy(rows, at + 1, changed, at, rows.length - at - 1);
+    }
+    Map<Integer, int[]> dests = new HashMap<>(routes(day, origin));
+    if (changed.length == 0) {
+      dests.remove(dest);
+    } else {
+      dests.put(dest, changed);
+    }
+    Map<Integer, Map<Integer, int[]>> origins = new HashMap<>(days.getOrDefault(day, Collections.emptyMap()));
+    origins.put(origin, dests);
+    Map<Integer, Map<Integer, Map<Integer, int[]>>> copy = new HashMap<>(days);
+    copy.put(day, origins);
+    return new RouteIndex(store, copy);
+  }
+
+  /**
+   * Orders rows by actual_time, then fid, as in the route lists
+   */
+  private int compareRows(int a, int b) {
+    int byTime = Integer.compare(store.time(a), store.time(b));
+    return byTime != 0 ? byTime : Integer.compare(store.fid(a), store.fid(b));
+  }
+
+  static RouteIndex build(FlightStore store) {
+    Map<Integer, Map<Integer, Map<Integer, List<Integer>>>> building = new HashMap<>();
+    for (int row = 0; row < store.size(); row++) {
+      if (!store.canceled(row)) {
+        building.computeIfAbsent(store.day(row), d -> new HashMap<>())
+          .computeIfAbsent(store.origin(row), o -> new HashMap<>())
+          .computeIfAbsent(store.dest(row), d -> new ArrayList<>())
+          .add(row);
+      }
+    }
+
+    Comparator<Integer> byTimeThenFid =
+      Comparator.comparingInt((Integer row) -> store.time(row)).thenComparingInt(store::fid);
+    Map<Integer, Map<Integer, Map<Integer, int[]>>> days = new HashMap<>();
+    for (Map.Entry<Integer, Map<Integer, Map<Integer, List<Integer>>>> day : building.entrySet()) {
+      Map<Integer, Map<Integer, int[]>> origins = new HashMap<>();
+      for (Map.Entry<Integer, Map<Integer, List<Integer>>> origin : day.getValue().entrySet()) {
+        Map<Integer, int[]> dests = new HashMap<>();
+        for (Map.Entry<Integer, List<Integer>> dest : origin.getValue().entrySet()) {
+          List<Integer> rows = dest.getValue();
+          rows.sort(byTimeThenFid);
+          dests.put(dest.getKey(), rows.stream().mapToInt(Integer::intValue).toArray());
+        }
+        origins.put(origin.getKey(), dests);
+      }
+      days.put(day.getKey(), origins);
+    }
+    return new RouteIndex(store, days);
+  }
+
+  public FlightStore getStore() {
+    return store;
+  }
+
+  /**
+   * Get the index itself: day of month -> origin city code -> destination city code -> rows
+   */
+  Map<Integer, Map<Integer, Map<Integer, int[]>>> getDays() {
+    return days;
+  }
+
+  /**
+   * Returns up to {@code limit} direct flights, ordered by actual_time then fid.
+   */
+  public List<Query.Flight> searchDirect(String originCity, String destinationCity,
+                                         int dayOfMonth, int limit) {
+    int[] rows = routes(dayOfMonth, store.cityCode(originCity)).get(store.cityCode(destinationCity));
+    if (rows == null || limit <= 0) {
+      return Collections.emptyList();
+    }
+    List<Query.Flight> flights = new ArrayList<>();
+    for (int i = 0; i < rows.length && i < limit; i++) {
+      flights.add(store.flight(rows[i]));
+    }
+    return flights;
+  }
+
+  /**
+   * Returns up to {@code limit} one-stop flight pairs, ordered by total time, then the first
+   * leg's fid, then the second leg's fid.
+   *
+   * Every stopover city contributes two sorted lists, so the pairs are produced by a k-way merge
+   * over (first leg, second leg) index pairs rather than by enumerating the cross product.
+   */
+  public List<Query.Flight[]> searchOneStop(String originCity, String destinationCity,
+                                            int dayOfMonth, int limit) {
+    List<Query.Flight[]> results = new ArrayList<>();
+    if (limit <= 0) {
+      return results;
+    }
+
+    int destination = store.cityCode(destinationCity);
+    PriorityQueue<Candidate> frontier = new PriorityQueue<>();
+    for (Map.Entry<Integer, int[]> stop : routes(dayOfMonth, store.cityCode(originCity)).entrySet()) {
+      int[] second = routes(dayOfMonth, stop.getKey()).get(destination);
+      if (second != null) {
+        frontier.add(new Candidate(store, stop.getValue(), second, 0, 0));
+      }
+    }
+
+    while (results.size() < limit && !frontier.isEmpty()) {
+      Candidate c = frontier.poll();
+      results.add(new Query.Flight[] {store.flight(c.first[c.i]), store.flight(c.second[c.j])});
+      // Each pair is reached from exactly one predecessor, so nothing is queued twice
+      if (c.j + 1 < c.second.length) {
+        frontier.add(new Candidate(store, c.first, c.second, c.i, c.j + 1));
+      }
+      if (c.j == 0 && c.i + 1 < c.first.length) {
+        frontier.add(new Candidate(store, c.first, c.second, c.i + 1, 0));
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Returns up to {@code limit} itineraries of one to {@code maxLegs} flights on the same day,
+   * ordered by total time, then by the legs' fids. An itinerary never visits a city twice.
+   *
+   * This is a best-first search over partial itineraries, guided by a lower bound on the time
+   * still needed to reach the destination with the legs left, so complete itineraries come off
+   * the frontier in order of total time. A partial itinerary only queues the fastest flight to
+   * each next city; the next-fastest is queued when that one is taken, as in searchOneStop.
+   *
+   * @param budgetNanos stop searching after this long and return the itineraries found so far
+   */
+  public List<Query.Flight[]> searchMultiStop(String originCity, String destinationCity,
+                                              int dayOfMonth, int limit, int maxLegs,
+                                              long budgetNanos) {
+    List<Query.Flight[]> results = new ArrayList<>();
+    int destination = store.cityCode(destinationCity);
+    if (limit <= 0 || maxLegs <= 0 || destination < 0) {
+      return results;
+    }
+    long deadline = System.nanoTime() + budgetNanos;
+    List<Map<Integer, Integer>> bounds =
+      timeToDestination(dayOfMonth, destination, maxLegs, deadline);
+    if (bounds == null) {
+      return results;
+    }
+
+    PriorityQueue<Path> frontier = new PriorityQueue<>();
+    for (Map.Entry<Integer, int[]> next : routes(dayOfMonth, store.cityCode(originCity)).entrySet()) {
+      Integer rest = bound(bounds, maxLegs - 1).get(next.getKey());
+      if (rest != null) {
+        frontier.add(new Path(store, null, next.getValue(), 0, rest));
+      }
+    }
+
+    // complete itineraries with the least total time not yet returned, as store rows
+    List<int[]> ties = new ArrayList<>();
+    int tieTime = 0;
+    int popped = 0;
+    while (results.size() < limit && !frontier.isEmpty()) {
+      if (++popped % 256 == 0 && System.nanoTime() > deadline) {
+        break;
+      }
+      Path p = frontier.poll();
+      if (p.index + 1 < p.choices.length) {
+        frontier.add(new Path(store, p.prefix, p.choices, p.index + 1, p.estimate - p.time));
+      }
+
+      int city = store.dest(p.row());
+      if (city == destination) {
+        ties.add(p.rows());
+        tieTime = p.time;
+      } else if (p.legs < maxLegs) {
+        Map<Integer, Integer> bound = bound(bounds, maxLegs - p.legs - 1);
+        for (Map.Entry<Integer, int[]> next : routes(dayOfMonth, city).entrySet()) {
+          Integer rest = bound.get(next.getKey());
+          if (rest != null && !p.visits(store, next.getKey())) {
+            frontier.add(new Path(store, p, next.getValue(), 0, rest));
+          }
+        }
+      }
+
+      // every itinerary of that total time has been found once nothing as fast is queued
+      if (!ties.isEmpty() && (frontier.isEmpty() || frontier.peek().estimate > tieTime)) {
+        addTies(ties, results, limit);
+      }
+    }
+    // out of time: the ties found so far are still the fastest found
+    addTies(ties, results, limit);
+    return results;
+  }
+
+  /**
+   * For each number of legs r up to maxLegs, the least time from each city to the destination
+   * using at most r flights of the day. Cities that cannot reach it are absent. Stops early once
+   * another leg improves nothing, so the list may be shorter than maxLegs; read it with
+   * {@link #bound}. Returns null if the deadline passes first.
+   */
+  private List<Map<Integer, Integer>> timeToDestination(int dayOfMonth, int destination,
+                                                        int maxLegs, long deadline) {
+    Map<Integer, Map<Integer, int[]>> origins =
+      days.getOrDefault(dayOfMonth, Collections.emptyMap());
+    List<Map<Integer, Integer>> bounds = new ArrayList<>();
+    Map<Integer, Integer> previous = new HashMap<>();
+    previous.put(destination, 0);
+    bounds.add(previous);
+    for (int legs = 1; legs < maxLegs; legs++) {
+      if (System.nanoTime() > deadline) {
+        return null;
+      }
+      Map<Integer, Integer> current = new HashMap<>(previous);
+      boolean changed = false;
+      for (Map.Entry<Integer, Map<Integer, int[]>> origin : origins.entrySet()) {
+        for (Map.Entry<Integer, int[]> dest : origin.getValue().entrySet()) {
+          Integer rest = previous.get(dest.getKey());
+          if (rest != null) {
+            // flights are sorted by time, so the first is the fastest
+            int time = store.time(dest.getValue()[0]) + rest;
+            Integer best = current.get(origin.getKey());
+            if (best == null || time < best) {
+              current.put(origin.getKey(), time);
+              changed = true;
+            }
+          }
+        }
+      }
+      if (!changed) {
+        // a fixpoint: more legs can't do better
+        break;
+      }
+      bounds.add(current);
+      previous = current;
+    }
+    return bounds;
+  }
+
+  /**
+   * The least times to the destination with at most legsLeft flights
+   */
+  private static Map<Integer, Integer> bound(List<Map<Integer, Integer>> bounds, int legsLeft) {
+    return bounds.get(Math.min(legsLeft, bounds.size() - 1));
+  }
+
+  private void addTies(List<int[]> ties, List<Query.Flight[]> results, int limit) {
+    ties.sort(this::compareFids);
+    for (int[] rows : ties) {
+      if (results.size() < limit) {
+        Query.Flight[] legs = new Query.Flight[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+          legs[i] = store.flight(rows[i]);
+        }
+        results.add(legs);
+      }
+    }
+    ties.clear();
+  }
+
+  private int compareFids(int[] a, int[] b) {
+    for (int i = 0; i < a.length && i < b.length; i++) {
+      int fidA = store.fid(a[i]);
+      int fidB = store.fid(b[i]);
+      if (fidA != fidB) {
+        return Integer.compare(fidA, fidB);
+      }
+    }
+    return Integer.compare(a.length, b.length);
+  }
+
+  private Map<Integer, int[]> routes(int dayOfMonth, int originCity) {
+    Map<Integer, Map<Integer, int[]>> origins = days.get(dayOfMonth);
+    if (origins == null) {
+      return Collections.emptyMap();
+    }
+    return origins.getOrDefault(originCity, Collections.emptyMap());
+  }
+
+  /**
+   * A partial itinerary: its prefix followed by one of the flights between two cities, which are
+   * store rows sorted by time
+   */
+  private static class Path implements Comparable<Path> {
+    final Path prefix;
+    final int[] choices;
+    final int index;
+    final int legs;
+    final int time;
+    // time so far plus a lower bound on the time still needed
+    final int estimate;
+
+    Path(FlightStore store, Path prefix, int[] choices, int index, int timeLeft) {
+      this.prefix = prefix;
+      this.choices = choices;
+      this.index = index;
+      this.legs = prefix == null ? 1 : prefix.legs + 1;
+      this.time = (prefix == null ? 0 : prefix.time) + store.time(choices[index]);
+      this.estimate = time + timeLeft;
+    }
+
+    int row() {
+      return choices[index];
+    }
+
+    boolean visits(FlightStore store, int city) {
+      for (Path p = this; p != null; p = p.prefix) {
+        if (store.origin(p.row()) == city) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    int[] rows() {
+      int[] rows = new int[legs];
+      for (Path p = this; p != null; p = p.prefix) {
+        rows[p.legs - 1] = p.row();
+      }
+      return rows;
+    }
+
+    @Override
+    public int compareTo(Path o) {
+      return Integer.compare(estimate, o.estimate);
+    }
+  }
+
+  /**
+   * A position in the merge of one stopover city's first and second legs
+   */
+  private static class Candidate implements Comparable<Candidate> {
+    final int[] first;
+    final int[] second;
+    final int i;
+    final int j;
+    final int totalTime;
+    final int firstFid;
+    final int secondFid;
+
+    Candidate(FlightStore store, int[] first, int[] second, int i, int j) {
+      this.first = first;
+      this.second = second;
+      this.i = i;
+      this.j = j;
+      this.totalTime = store.time(first[i]) + store.time(second[j]);
+      this.firstFid = store.fid(first[i]);
+      this.secondFid = store.fid(second[j]);
+    }
+
+    @Override
+    public int compareTo(Candidate o) {
+      if (totalTime != o.totalTime) {
+        return Integer.compare(totalTime, o.totalTime);
+      }
+      if (firstFid != o.firstFid) {
+        return Integer.compare(firstFid, o.firstFid);
+      }
+      return Integer.compare(secondFid, o.secondFid);
+    }
+  }
+}
@@ -0,0 +1,192 @@
+package flightapp;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A bounded, thread-safe cache of search results shared by every session.
+ *
+ * Entries are keyed on (origin, destination, direct, day) and hold the direct and one-stop
+ * candidates fetched for the largest numberOfItineraries seen so far, so any smaller request is
+ * answered from a prefix of the cached candidates. Entries are evicted least-recently-used once
+ * the cache is full, and expire after a fixed time-to-live.
+ */
+public class SearchCache {
+  private final int maxEntries;
+  private final long ttlMillis;
+  private final LinkedHashMap<Key, Entry> entries;
+
+  // counts the evictions done for changed flights
+  private long generation;
+
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  public SearchCache(int maxEntries, long ttlMillis) {
+    this.maxEntries = maxEntries;
+    this.ttlMillis = ttlMillis;
+    this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+        if (size() > SearchCache.this.maxEntries) {
+          evictions++;
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Returns the shared cache configured from dbconn.properties, or null if caching is disabled
+   * (flightapp.search_cache.size = 0).
+   */
+  public static SearchCache getInstance() {
+    return Holder.INSTANCE;
+  }
+
+  private static SearchCache create() {
+    int size = Integer.parseInt(DBConnUtils.getProperty("flightapp.search_cache.size", "10000"));
+    long ttl = Long.parseLong(DBConnUtils.getProperty("flightapp.search_cache.ttl_ms", "300000"));
+    return size <= 0 ? null : new SearchCache(size, ttl);
+  }
+
+  /**
+   * Returns a cached result that can answer a search for {@code numberOfItineraries}, or null.
+   */
+  public synchronized Query.SearchResult get(String originCity, String destinationCity,
+                                             boolean directFlight, int dayOfMonth,
+                                             int numberOfItineraries) {
+    Key key = new Key(originCity, destinationCity, directFlight, dayOfMonth);
+    Entry entry = entries.get(key);
+    if (entry != null && System.currentTimeMillis() - entry.createdAt > ttlMillis) {
+      entries.remove(key);
+      evictions++;
+      entry = null;
+    }
+    if (entry == null || !entry.result.canAnswer(numberOfItineraries)) {
+      misses++;
+      return null;
+    }
+    hits++;
+    return entry.result;
+  }
+
+  /**
+   * Get the current generation, to pass to {@link #put} for a search started now
+   */
+  public synchronized long getGeneration() {
+    return generation;
+  }
+
+  /**
+   * Caches a result, unless a result answering at least as many itineraries is already cached,
+   * or flights were evicted since the search started, so the result may predate a change.
+   *
+   * @param generation the generation when the search started
+   */
+  public synchronized void put(String originCity, String destinationCity, boolean directFlight,
+                               int dayOfMonth, Query.SearchResult result, long generation) {
+    if (generation != this.generation) {
+      return;
+    }
+    Key key = new Key(originCity, destinationCity, directFlight, dayOfMonth);
+    Entry existing = entries.get(key);
+    if (existing != null && existing.result.canAnswer(result.getRequested())) {
+      return;
+    }
+    entries.put(key, new Entry(result, System.currentTimeMillis()));
+  }
+
+  /**
+   * Drops the cached results for the given days, which covers every search a changed flight on
+   * one of them can appear in
+   *
+   * @return the number of results dropped
+   */
+  public synchronized int evictDays(Collection<Integer> days) {
+    generation++;
+    int evicted = 0;
+    for (Iterator<Key> it = entries.keySet().iterator(); it.hasNext(); ) {
+      if (days.contains(it.next().dayOfMonth)) {
+        it.remove();
+        evicted++;
+      }
+    }
+    return evicted;
+  }
+
+  /**
+   * Drops every cached result
+   */
+  public synchronized void clear() {
+    generation++;
+    entries.clear();
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  /**
+   * Creates the shared cache on first use, without locking later reads
+   */
+  private static class Holder {
+    static final SearchCache INSTANCE = create();
+  }
+
+  private static class Entry {
+    final Query.SearchResult result;
+    final long createdAt;
+
+    Entry(Query.SearchResult result, long createdAt) {
+      this.result = result;
+      this.createdAt = createdAt;
+    }
+  }
+
+  private static class Key {
+    final String originCity;
+    final String destinationCity;
+    final boolean directFlight;
+    final int dayOfMonth;
+
+    Key(String originCity, String destinationCity, boolean directFlight, int dayOfMonth) {
+      this.originCity = originCity;
+      this.destinationCity = destinationCity;
+      this.directFlight = directFlight;
+      this.dayOfMonth = dayOfMonth;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key k = (Key) o;
+      return directFlight == k.directFlight && dayOfMonth == k.dayOfMonth
+        && originCity.equals(k.originCity) && destinationCity.equals(k.destinationCity);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(originCity, destinationCity, directFlight, dayOfMonth);
+    }
+  }
+}
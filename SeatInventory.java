@@ -0,0 +1,215 @@
+package flightapp;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks booked seats with one counter row per flight, so a capacity check costs a single
+ * keyed update no matter how many reservations exist.
+ *
+ * A counter counts every reservation that uses the flight, as any of its legs.
+ * Counters change in the same transaction as the reservations they count. Flight capacities
+ * are cached for the whole process; the FlightChangeFeed drops those of changed flights.
+ */
+public class SeatInventory {
+  private static final String CREATE_SEATS_TABLE_SQL = "CREATE TABLE IF NOT EXISTS flight_seats_ishaj83 "
+    + "(fid INT PRIMARY KEY, booked INT NOT NULL)";
+
+  private static final String CLEAR_SEATS_SQL = "DELETE FROM flight_seats_ishaj83";
+
+  // Rebuilds every counter from the reservations and reservation legs tables; only run once per
+  // process, after ReservationIdAllocator has created the legs table
+  private static final String RECOUNT_SEATS_SQL = "INSERT INTO flight_seats_ishaj83 (fid, booked) "
+    + "SELECT fid, count(*) FROM (SELECT flightID1 AS fid FROM reservations_ishaj83 "
+    + "UNION ALL SELECT flightID2 FROM reservations_ishaj83 WHERE flightID2 IS NOT NULL "
+    + "UNION ALL SELECT fid FROM reservation_legs_ishaj83) legs "
+    + "GROUP BY fid";
+
+  private static final String COUNTERS_SQL = "SELECT fid, booked FROM flight_seats_ishaj83";
+
+  private static final String TOTAL_BOOKED_SQL = "SELECT coalesce(sum(booked), 0) AS booked "
+    + "FROM flight_seats_ishaj83";
+
+  private static final String FLIGHT_CAPACITY_SQL = "SELECT capacity FROM Flights WHERE fid = ?";
+
+  // Takes a seat only while the counter is below the flight's capacity
+  private static final String RESERVE_SEAT_SQL = "INSERT INTO flight_seats_ishaj83 AS s (fid, booked) "
+    + "VALUES (?, 1) ON CONFLICT (fid) DO UPDATE SET booked = s.booked + 1 WHERE s.booked < ?";
+
+  // Batched bookings: create missing counters, lock them in fid order, then add to them
+  private static final String CREATE_COUNTERS_SQL = "INSERT INTO flight_seats_ishaj83 (fid, booked) "
+    + "SELECT unnest(?::int[]), 0 ON CONFLICT (fid) DO NOTHING";
+
+  private static final String LOCK_COUNTERS_SQL = "SELECT fid, booked FROM flight_seats_ishaj83 "
+    + "WHERE fid = ANY (?) ORDER BY fid FOR UPDATE";
+
+  private static final String ADD_BOOKED_SQL = "UPDATE flight_seats_ishaj83 AS s SET booked = s.booked + v.n "
+    + "FROM unnest(?::int[], ?::int[]) AS v (fid, n) WHERE s.fid = v.fid";
+
+  private static final Map<Integer, Integer> capacities = new ConcurrentHashMap<>();
+  private static boolean initialized = false;
+
+  private final StatementRegistry statements;
+  private final PreparedStatement flightCapacityStmt;
+  private final PreparedStatement reserveSeatStmt;
+
+  public SeatInventory(StatementRegistry statements) throws SQLException {
+    initialize(statements.getConnection());
+    this.statements = statements;
+    flightCapacityStmt = statements.get(FLIGHT_CAPACITY_SQL);
+    reserveSeatStmt = statements.get(RESERVE_SEAT_SQL);
+  }
+
+  /**
+   * Creates the counter table if needed and recounts it from the reservations table, once per
+   * process. The recount is skipped when the event journal shows the booking tables are as this
+   * process left them and the counters add up to the seats it counts; otherwise the recount gives
+   * the journal the counts to start from.
+   */
+  private static synchronized void initialize(Connection conn) throws SQLException {
+    if (initialized) {
+      return;
+    }
+    boolean autoCommit = conn.getAutoCommit();
+    try (Statement s = conn.createStatement()) {
+      s.executeUpdate(CREATE_SEATS_TABLE_SQL);
+      EventJournal journal = EventJournal.open(conn);
+      if (journal != null && journal.isWarm()) {
+        // the counter table may have been dropped or restored on its own
+        try (ResultSet rs = s.executeQuery(TOTAL_BOOKED_SQL)) {
+          rs.next();
+          if (rs.getLong("booked") == journal.getTotalBooked()) {
+            initialized = true;
+            return;
+          }
+        }
+      }
+      conn.setAutoCommit(false);
+      s.executeUpdate(CLEAR_SEATS_SQL);
+      s.executeUpdate(RECOUNT_SEATS_SQL);
+      Map<Integer, Integer> counts = new HashMap<>();
+      if (journal != null) {
+        try (ResultSet rs = s.executeQuery(COUNTERS_SQL)) {
+          while (rs.next()) {
+            counts.put(rs.getInt("fid"), rs.getInt("booked"));
+          }
+        }
+      }
+      conn.commit();
+      if (journal != null) {
+        journal.reset(counts);
+      }
+    } catch (SQLException e) {
+      conn.rollback();
+      throw e;
+    } finally {
+      conn.setAutoCommit(autoCommit);
+    }
+    initialized = true;
+  }
+
+  /**
+   * Clears every counter. Must be called whenever the reservations table is cleared.
+   */
+  public static void clear(Connection conn) throws SQLException {
+    try (Statement s = conn.createStatement()) {
+      s.executeUpdate(CREATE_SEATS_TABLE_SQL);
+      s.executeUpdate(CLEAR_SEATS_SQL);
+    }
+  }
+
+  /**
+   * Drops a flight's cached capacity, eg after it was changed in the database
+   */
+  public static void forgetCapacity(int fid) {
+    capacities.remove(fid);
+  }
+
+  public static void forgetCapacities() {
+    capacities.clear();
+  }
+
+  /**
+   * Returns the capacity of a flight, or 0 if the flight does not exist
+   */
+  public int getCapacity(int fid) throws SQLException {
+    Integer capacity = capacities.get(fid);
+    if (capacity != null) {
+      return capacity;
+    }
+
+    flightCapacityStmt.clearParameters();
+    flightCapacityStmt.setInt(1, fid);
+    try (ResultSet results = CommandMetrics.executeQuery(flightCapacityStmt)) {
+      int cap = CommandMetrics.next(results) ? results.getInt("capacity") : 0;
+      capacities.put(fid, cap);
+      return cap;
+    }
+  }
+
+  /**
+   * Takes one seat on a flight as part of the caller's transaction.
+   *
+   * @return false if the flight is already full, in which case nothing was changed
+   */
+  public boolean reserveSeat(int fid) throws SQLException {
+    int capacity = getCapacity(fid);
+    if (capacity <= 0) {
+      return false;
+    }
+    reserveSeatStmt.clearParameters();
+    reserveSeatStmt.setInt(1, fid);
+    reserveSeatStmt.setInt(2, capacity);
+    return CommandMetrics.executeUpdate(reserveSeatStmt) > 0;
+  }
+
+  /**
+   * Locks the counters of several flights, in fid order, as part of the caller's transaction.
+   * Counters that don't exist yet are created at 0.
+   *
+   * @return the number of booked seats on each flight
+   */
+  public Map<Integer, Integer> lockCounters(Collection<Integer> fids) throws SQLException {
+    Integer[] sorted = new TreeSet<>(fids).toArray(new Integer[0]);
+    Array fidArray = statements.getConnection().createArrayOf("integer", sorted);
+
+    PreparedStatement create = statements.get(CREATE_COUNTERS_SQL);
+    create.clearParameters();
+    create.setArray(1, fidArray);
+    CommandMetrics.executeUpdate(create);
+
+    PreparedStatement lock = statements.get(LOCK_COUNTERS_SQL);
+    lock.clearParameters();
+    lock.setArray(1, fidArray);
+    Map<Integer, Integer> booked = new HashMap<>();
+    try (ResultSet results = CommandMetrics.executeQuery(lock)) {
+      while (CommandMetrics.next(results)) {
+        booked.put(results.getInt("fid"), results.getInt("booked"));
+      }
+    }
+    return booked;
+  }
+
+  /**
+   * Adds seats to counters locked with {@link #lockCounters}, without checking capacity
+   *
+   * @param seats the number of seats to add to each flight's counter
+   */
+  public void addBooked(Map<Integer, Integer> seats) throws SQLException {
+    Connection conn = statements.getConnection();
+    PreparedStatement add = statements.get(ADD_BOOKED_SQL);
+    add.clearParameters();
+    add.setArray(1, conn.createArrayOf("integer", seats.keySet().toArray(new Integer[0])));
+    add.setArray(2, conn.createArrayOf("integer", seats.values().toArray(new Integer[0])));
+    CommandMetrics.executeUpdate(add);
+  }
+}
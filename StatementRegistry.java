@@ -0,0 +1,84 @@
+package flightapp;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The prepared statements of one physical connection, keyed by their SQL.
+ *
+ * Each canned statement is prepared the first time it is asked for and then reused by every
+ * session that borrows the connection, so the hot paths neither allocate statements nor make
+ * the server parse and plan the same SQL again. The statements are closed with the connection.
+ */
+public class StatementRegistry {
+  private static final AtomicLong totalPrepared = new AtomicLong();
+
+  private final Connection conn;
+  private final Map<String, PreparedStatement> statements = new HashMap<>();
+  private final TransactionTracker tracker;
+
+  public StatementRegistry(Connection conn) throws SQLException {
+    this.conn = conn;
+    this.tracker = new TransactionTracker(conn);
+  }
+
+  /**
+   * Get the connection the statements are prepared on
+   */
+  public Connection getConnection() {
+    return conn;
+  }
+
+  /**
+   * Get the tracker of the connection's transaction state
+   */
+  public TransactionTracker getTransactionTracker() {
+    return tracker;
+  }
+
+  /**
+   * Get the statement for the given SQL, preparing it on first use
+   */
+  public synchronized PreparedStatement get(String sql) throws SQLException {
+    PreparedStatement ps = statements.get(sql);
+    if (ps == null || ps.isClosed()) {
+      ps = conn.prepareStatement(sql);
+      statements.put(sql, ps);
+      totalPrepared.incrementAndGet();
+    }
+    return ps;
+  }
+
+  /**
+   * Closes every statement
+   */
+  public synchronized void close() {
+    for (PreparedStatement ps : statements.values()) {
+      try {
+        ps.close();
+      } catch (SQLException e) {
+        // closing the connection closes it anyway
+      }
+    }
+    statements.clear();
+  }
+
+  /**
+   * Get the number of statements currently prepared on this connection
+   */
+  public synchronized int size() {
+    return statements.size();
+  }
+
+  /**
+   * Get the number of statements prepared by every registry in the process. This stays flat once
+   * each pooled connection has prepared the canned SQL.
+   */
+  public static long getTotalPrepared() {
+    return totalPrepared.get();
+  }
+}
@@ -0,0 +1,231 @@
+package flightapp;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs database transactions, retrying the ones the server aborted because of a serialization
+ * failure or deadlock (SQLState 40001 / 40P01).
+ *
+ * Retries are capped and spaced with exponential backoff and full jitter, so aborted sessions
+ * spread out instead of immediately colliding again. Optionally, the number of transactions
+ * allowed to run at once adapts to the abort rate: it shrinks multiplicatively on every abort
+ * and grows back additively on every commit. Attempts, retries, aborts and give-ups are counted
+ * per operation.
+ */
+public class TransactionRunner {
+  /**
+   * One attempt of a transaction. It must commit or roll back before returning normally; if it
+   * throws, the runner rolls it back.
+   */
+  public interface Work<T> {
+    T run() throws SQLException;
+  }
+
+  private final int maxAttempts;
+  private final long baseBackoffMillis;
+  private final long maxBackoffMillis;
+  private final boolean adaptive;
+  private final int minLimit;
+  private final int maxLimit;
+
+  // Adaptive concurrency limit; guarded by this
+  private double limit;
+  private int inFlight;
+
+  private final Map<String, OperationStats> stats = new ConcurrentHashMap<>();
+
+  public TransactionRunner(int maxAttempts, long baseBackoffMillis, long maxBackoffMillis,
+                           boolean adaptive, int minLimit, int maxLimit) {
+    this.maxAttempts = maxAttempts;
+    this.baseBackoffMillis = baseBackoffMillis;
+    this.maxBackoffMillis = maxBackoffMillis;
+    this.adaptive = adaptive;
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    this.limit = maxLimit;
+  }
+
+  /**
+   * Returns the shared runner configured from dbconn.properties
+   */
+  public static TransactionRunner getInstance() {
+    return Holder.INSTANCE;
+  }
+
+  /**
+   * Runs {@code work} until it completes, fails with a non-retryable error, or runs out of
+   * attempts.
+   *
+   * @param operation name the counters are kept under, eg "book"
+   * @param conn      connection the work runs on, rolled back after a failed attempt
+   * @param onFailure returned if the work could not be completed
+   */
+  public <T> T run(String operation, Connection conn, Work<T> work, T onFailure) {
+    OperationStats op = stats.computeIfAbsent(operation, k -> new OperationStats());
+    for (int attempt = 1; ; attempt++) {
+      op.attempts.incrementAndGet();
+      acquire();
+      boolean aborted = false;
+      try {
+        return work.run();
+      } catch (SQLException e) {
+        rollback(conn);
+        aborted = isRetryable(e);
+        if (!aborted) {
+          op.failures.incrementAndGet();
+          e.printStackTrace();
+          return onFailure;
+        }
+        op.aborts.incrementAndGet();
+        CommandMetrics.aborted();
+        if (attempt >= maxAttempts) {
+          op.failures.incrementAndGet();
+          System.err.println(operation + " gave up after " + attempt + " aborted attempts: "
+                             + e.getMessage());
+          return onFailure;
+        }
+      } finally {
+        release(aborted);
+      }
+      op.retries.incrementAndGet();
+      CommandMetrics.retried();
+      if (!backoff(attempt)) {
+        op.failures.incrementAndGet();
+        return onFailure;
+      }
+    }
+  }
+
+  /**
+   * Utility function to determine whether an error was caused by a serialization failure or
+   * deadlock, ie the transaction can simply be run again
+   */
+  public static boolean isRetryable(SQLException e) {
+    return "40001".equals(e.getSQLState()) || "40P01".equals(e.getSQLState());
+  }
+
+  private static void rollback(Connection conn) {
+    try {
+      if (!conn.getAutoCommit()) {
+        conn.rollback();
+      }
+    } catch (SQLException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Sleeps a random time between 0 and the capped exponential backoff for this attempt
+   *
+   * @return false if interrupted
+   */
+  private boolean backoff(int attempt) {
+    long ceiling = Math.min(maxBackoffMillis, baseBackoffMillis << Math.min(attempt - 1, 20));
+    try {
+      Thread.sleep(ThreadLocalRandom.current().nextLong(ceiling + 1));
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  private synchronized void acquire() {
+    if (!adaptive) {
+      return;
+    }
+    while (inFlight >= (int) limit) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    inFlight++;
+  }
+
+  private synchronized void release(boolean aborted) {
+    if (!adaptive) {
+      return;
+    }
+    inFlight--;
+    if (aborted) {
+      limit = Math.max(minLimit, limit * 0.75);
+    } else {
+      limit = Math.min(maxLimit, limit + 1.0 / limit);
+    }
+    notifyAll();
+  }
+
+  /**
+   * Get the current adaptive concurrency limit
+   */
+  public synchronized int getConcurrencyLimit() {
+    return (int) limit;
+  }
+
+  /**
+   * Get the counters for every operation run so far, by operation name
+   */
+  public Map<String, OperationStats> getStats() {
+    return new TreeMap<>(stats);
+  }
+
+  /**
+   * Attempt counters for one operation
+   */
+  public static class OperationStats {
+    final AtomicLong attempts = new AtomicLong();
+    final AtomicLong retries = new AtomicLong();
+    final AtomicLong aborts = new AtomicLong();
+    final AtomicLong failures = new AtomicLong();
+
+    public long getAttempts() {
+      return attempts.get();
+    }
+
+    public long getRetries() {
+      return retries.get();
+    }
+
+    /**
+     * Get the number of attempts the server aborted with a serialization failure or deadlock
+     */
+    public long getAborts() {
+      return aborts.get();
+    }
+
+    /**
+     * Get the number of times the operation gave up and returned its failure response
+     */
+    public long getFailures() {
+      return failures.get();
+    }
+
+    @Override
+    public String toString() {
+      return "attempts: " + getAttempts() + " retries: " + getRetries() + " aborts: "
+          + getAborts() + " failures: " + getFailures();
+    }
+  }
+
+  /**
+   * Creates the shared runner on first use, without locking later reads
+   */
+  private static class Holder {
+    static final TransactionRunner INSTANCE = new TransactionRunner(
+        Integer.parseInt(DBConnUtils.getProperty("flightapp.retry.max_attempts", "10")),
+        Long.parseLong(DBConnUtils.getProperty("flightapp.retry.base_backoff_ms", "2")),
+        Long.parseLong(DBConnUtils.getProperty("flightapp.retry.max_backoff_ms", "200")),
+        Boolean.parseBoolean(DBConnUtils.getProperty("flightapp.retry.adaptive", "false")),
+        Integer.parseInt(DBConnUtils.getProperty("flightapp.retry.min_concurrency", "1")),
+        Integer.parseInt(DBConnUtils.getProperty("flightapp.retry.max_concurrency", "64")));
+  }
+}
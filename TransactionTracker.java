@@ -0,0 +1,86 @@
+package flightapp;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.postgresql.core.BaseConnection;
+import org.postgresql.core.TransactionState;
+
+/**
+ * Knows, without asking the server, whether a physical connection has a transaction open.
+ *
+ * The driver keeps the server's transaction status from the end of every reply, so reading it
+ * costs nothing. The pool reports commits, rollbacks and auto-commit changes on a lease here.
+ */
+public class TransactionTracker {
+  private static final AtomicLong totalCommitted = new AtomicLong();
+  private static final AtomicLong totalRolledBack = new AtomicLong();
+
+  private final BaseConnection conn;
+  private volatile boolean autoCommit = true;
+
+  public TransactionTracker(Connection conn) throws SQLException {
+    this.conn = conn.unwrap(BaseConnection.class);
+  }
+
+  /**
+   * Called after the connection's setAutoCommit succeeded; turning auto-commit on commits
+   */
+  public synchronized void autoCommitChanged(boolean autoCommit) {
+    if (autoCommit && !this.autoCommit) {
+      committed();
+    }
+    this.autoCommit = autoCommit;
+  }
+
+  /**
+   * Called after the connection's commit succeeded
+   */
+  public synchronized void committed() {
+    if (!autoCommit) {
+      totalCommitted.incrementAndGet();
+    }
+  }
+
+  /**
+   * Called after the connection's rollback (of the whole transaction) succeeded
+   */
+  public synchronized void rolledBack() {
+    if (!autoCommit) {
+      totalRolledBack.incrementAndGet();
+    }
+  }
+
+  /**
+   * Called once the pool has rolled back the connection and turned auto-commit back on
+   */
+  public synchronized void reset() {
+    autoCommit = true;
+  }
+
+  /**
+   * Whether a transaction has begun and has not yet been committed or rolled back
+   */
+  public boolean isOpen() {
+    return conn.getTransactionState() != TransactionState.IDLE;
+  }
+
+  public boolean isAutoCommit() {
+    return autoCommit;
+  }
+
+  /**
+   * Get the number of transactions committed on every tracked connection in the process
+   */
+  public static long getTotalCommitted() {
+    return totalCommitted.get();
+  }
+
+  /**
+   * Get the number of transactions rolled back on every tracked connection in the process
+   */
+  public static long getTotalRolledBack() {
+    return totalRolledBack.get();
+  }
+}